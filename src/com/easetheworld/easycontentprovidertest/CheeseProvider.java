@@ -4,12 +4,20 @@ import java.io.FileNotFoundException;
 import java.util.List;
 
 import android.content.ContentResolver;
+import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
+import dev.easetheworld.easycontentprovider.AssetDatabaseHelper;
+import dev.easetheworld.easycontentprovider.BackfillHistory;
+import dev.easetheworld.easycontentprovider.BackupUriOps;
 import dev.easetheworld.easycontentprovider.BaseUriOps;
 import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.ExternalFileUriOps;
+import dev.easetheworld.easycontentprovider.ImportUriOps;
+import dev.easetheworld.easycontentprovider.MaterializedAggregateUriOps;
 
 public class CheeseProvider extends EasyContentProvider {
 
@@ -22,12 +30,19 @@ public class CheeseProvider extends EasyContentProvider {
 		public static final String NAME = "name";
 		public static final String MEMO = "memo";
 		public static final String FLAG1 = "flag1";
+		public static final String MEMO_FILE = "memo_file"; // file name of the large memo
+		public static final String NAME_KEY = "name_key"; // lower case name for case-insensitive sort
 		
 		public static final int COLUMN_INDEX_ID = 0;
 		public static final int COLUMN_INDEX_NAME = 1;
 		public static final int COLUMN_INDEX_MEMO = 2;
 	}
 	
+	public static final String ORIGINS_DATABASE_NAME = "origins"; // assets/origins.db
+	
+	// count of each flag1. its side table is created in the history.
+	private final MaterializedAggregateUriOps mCheeseByFlag = new MaterializedAggregateUriOps("cheese_by_flag", CheeseContract.TABLE_NAME, CheeseContract.FLAG1);
+	
 	@Override
 	protected String getAuthority() {
 		return AUTHORITY;
@@ -52,19 +67,78 @@ public class CheeseProvider extends EasyContentProvider {
 					db.execSQL("ALTER TABLE " + CheeseContract.TABLE_NAME + " ADD COLUMN " + CheeseContract.FLAG1 + " INTEGER;");
 				}
 			},
+			new DatabaseHistory() {
+				@Override
+				public void upgrade(SQLiteDatabase db) {
+					db.execSQL("ALTER TABLE " + CheeseContract.TABLE_NAME + " ADD COLUMN " + CheeseContract.MEMO_FILE + " TEXT;");
+					db.execSQL("CREATE INDEX IF NOT EXISTS " + CheeseContract.TABLE_NAME + "_" + CheeseContract.MEMO_FILE +
+							" ON " + CheeseContract.TABLE_NAME + "(" + CheeseContract.MEMO_FILE + ");");
+				}
+			},
+			new BackfillHistory(CheeseContract.TABLE_NAME, CheeseContract.NAME_KEY, "TEXT", "lower(" + CheeseContract.NAME + ")"), // filled in background
+			mCheeseByFlag.getDatabaseHistory(),
+			new DatabaseHistory() {
+				@Override
+				public void upgrade(SQLiteDatabase db) {
+					// the backfill only fills the old rows. keep name_key of the new and renamed cheeses.
+					String setNameKey = " BEGIN UPDATE " + CheeseContract.TABLE_NAME +
+							" SET " + CheeseContract.NAME_KEY + "=lower(NEW." + CheeseContract.NAME + ") WHERE rowid=NEW.rowid; END;";
+					db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CheeseContract.TABLE_NAME + "_name_key_insert" +
+							" AFTER INSERT ON " + CheeseContract.TABLE_NAME + setNameKey);
+					db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CheeseContract.TABLE_NAME + "_name_key_update" +
+							" AFTER UPDATE OF " + CheeseContract.NAME + " ON " + CheeseContract.TABLE_NAME + setNameKey);
+				}
+			},
 		};
 		return history;
 	}
+	
+	@Override
+	protected SQLiteOpenHelper onCreateSQLiteOpenHelper(Context context, String databaseName) {
+		if (ORIGINS_DATABASE_NAME.equals(databaseName)) // prebuilt in assets
+			return new AssetDatabaseHelper(context, "origins.db", 1);
+		return super.onCreateSQLiteOpenHelper(context, databaseName);
+	}
+	
+	@Override
+	protected DatabaseHistory[] onCreateDatabaseHistory(String databaseName) {
+		if (!ProviderStress.DATABASE_NAME.equals(databaseName))
+			return super.onCreateDatabaseHistory(databaseName);
+		return new DatabaseHistory[] {
+			new DatabaseHistory() {
+				@Override
+				public void upgrade(SQLiteDatabase db) {
+					db.execSQL("CREATE TABLE " + CheeseContract.TABLE_NAME + "(" +
+							 CheeseContract.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+							 CheeseContract.NAME + " TEXT NOT NULL," +
+							 CheeseContract.FLAG1 + " INTEGER" +
+							");");
+				}
+			},
+		};
+	}
 
 	@Override
 	protected UriOps[] onCreateUriOps() {
+		BaseUriOps cheeseOps = new BaseUriOps(CheeseContract.TABLE_NAME)
+			.setExternalColumn(CheeseContract.MEMO, CheeseContract.MEMO_FILE, 4096); // memo larger than 4KB is stored in a file
+		BaseUriOps cheeseIdOps = new BaseUriOps(CheeseContract.TABLE_NAME+"/#") // '#' must be added before '*' because '*' includes '#' 
+			.setUriSelection(CheeseContract.ID+"=?")
+			.shareExternalColumns(cheeseOps);
 		return new UriOps[] {
-			new BaseUriOps(CheeseContract.TABLE_NAME),
-			new BaseUriOps(CheeseContract.TABLE_NAME+"/#") // '#' must be added before '*' because '*' includes '#' 
-				.setUriSelection(CheeseContract.ID+"=?"),
+			cheeseOps,
+			cheeseIdOps,
+			new ExternalFileUriOps(CheeseContract.TABLE_NAME+"/#/memo", cheeseIdOps, CheeseContract.MEMO_FILE), // openInputStream("cheese/1/memo") reads the large memo
 			new BaseUriOps(CheeseContract.TABLE_NAME+"/*")
-				.setUriSelection(CheeseContract.NAME+"=?"),
+				.setUriSelection(CheeseContract.NAME+"=?")
+				.shareExternalColumns(cheeseOps),
+			mCheeseByFlag,
+			new ImportUriOps("import/*", cheeseOps), // write csv or json lines to openFileDescriptor("import/name", "w")
+			new BaseUriOps("origin").setDatabaseName(ORIGINS_DATABASE_NAME), // read-only
+			new BackupUriOps("backup"), // openFileDescriptor("backup", "r") streams a copy of the database
 			new OpenFileUriOps("file/*"),
+			new ProviderStress.StressUriOps(ProviderStress.PATH).setAggregateRoutes(true), // "Stress Test" in its own database. stress/_count, stress/_aggregate
+			new ProviderStress.StressUriOps(ProviderStress.PATH+"/#").setUriSelection(CheeseContract.ID+"=?"),
 		};
 	}
 	
@@ -90,6 +164,6 @@ public class CheeseProvider extends EasyContentProvider {
 		if (ops instanceof OpenFileUriOps)
 			return ((OpenFileUriOps)ops).openFile(uri, mode);
 		else
-			return null;
+			return super.openFile(uri, mode);
 	}
 }
\ No newline at end of file
@@ -27,6 +27,8 @@ import android.os.AsyncTask;
 
 import com.easetheworld.easycontentprovidertest.CheeseProvider.CheeseContract;
 
+import dev.easetheworld.easycontentprovider.ChunkedResolver;
+
 // from ApiDemos15
 public class Cheeses {
 	
@@ -73,7 +75,7 @@ public class Cheeses {
 				cv.put(CheeseContract.NAME, l.get(i));
 				cvs[i] = cv;
 			}
-			mContext.getContentResolver().bulkInsert(CheeseContract.CONTENT_URI, cvs);
+			new ChunkedResolver(mContext.getContentResolver()).bulkInsert(CheeseContract.CONTENT_URI, cvs);
 			long t2 = System.currentTimeMillis();
 			android.util.Log.i("InsertRandomCheeseDataTask", "insert "+sCheeseStrings.length+" cheese in "+(t2-t1)+"ms");
 			return null;
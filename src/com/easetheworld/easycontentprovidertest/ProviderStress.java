@@ -0,0 +1,453 @@
+package com.easetheworld.easycontentprovidertest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.easetheworld.easycontentprovidertest.CheeseProvider.CheeseContract;
+
+import dev.easetheworld.easycontentprovider.AggregateUriOps;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+
+// Mixed readers and writers on the "stress" uri of CheeseProvider with 1 to 64 threads.
+// The uri has the cheese table in its own database, so the cheeses of the user are not touched.
+// Reports throughput, latency and lock wait of each thread count, and checks
+// lost notifications(ex. mApplyingBatch leaked to other threads), SQLITE_BUSY and deadlock.
+// The provider must run in the process of the stress to measure the lock wait. (the sample app does)
+public class ProviderStress {
+	
+	private static final String TAG = "ProviderStress";
+	
+	public static final String DATABASE_NAME = "stress";
+	public static final String PATH = "stress";
+	public static final Uri CONTENT_URI = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(CheeseProvider.AUTHORITY).path(PATH).build();
+	
+	public static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final String NAME_PREFIX = "stress-";
+	private static final int BATCH_SIZE = 10;
+	
+	// the cheese table in the stress database. each write measures its wait for the database lock.
+	public static class StressUriOps extends BaseUriOps {
+		private static final Latencies sLockWaits = new Latencies(); // guarded by itself
+		
+		public StressUriOps(String uriPath) {
+			super(uriPath, CheeseContract.TABLE_NAME);
+			setDatabaseName(DATABASE_NAME);
+		}
+		
+		// the lock wait is the time of BEGIN. not measured in applyBatch which holds the lock already.
+		private static void beginTransaction(SQLiteDatabase db) {
+			boolean measured = !db.inTransaction();
+			long start = System.nanoTime();
+			db.beginTransaction();
+			if (measured) {
+				long wait = System.nanoTime() - start;
+				synchronized (sLockWaits) {
+					sLockWaits.add(wait);
+				}
+			}
+		}
+		
+		static Latencies takeLockWaits() {
+			Latencies waits = new Latencies();
+			synchronized (sLockWaits) {
+				waits.addAll(sLockWaits);
+				sLockWaits.clear();
+			}
+			return waits;
+		}
+		
+		@Override
+		public Uri insert(SQLiteDatabase db, Uri uri, ContentValues values) {
+			beginTransaction(db);
+			try {
+				Uri result = super.insert(db, uri, values);
+				db.setTransactionSuccessful();
+				return result;
+			} finally {
+				db.endTransaction();
+			}
+		}
+		
+		@Override
+		public int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+			beginTransaction(db);
+			try {
+				int result = super.update(db, uri, values, selection, selectionArgs);
+				db.setTransactionSuccessful();
+				return result;
+			} finally {
+				db.endTransaction();
+			}
+		}
+		
+		@Override
+		public int delete(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+			beginTransaction(db);
+			try {
+				int result = super.delete(db, uri, selection, selectionArgs);
+				db.setTransactionSuccessful();
+				return result;
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+	
+	private final ContentResolver mResolver;
+	private int[] mThreadCounts = THREAD_COUNTS;
+	private long mRoundMillis = 2000;
+	private int mReadPercent = 70;
+	private long mDeadlockMillis = 10000;
+	private long mNotificationMillis = 5000;
+	
+	public ProviderStress(ContentResolver resolver) {
+		mResolver = resolver;
+	}
+	
+	public ProviderStress setRoundMillis(long roundMillis) {
+		mRoundMillis = roundMillis;
+		return this;
+	}
+	
+	public ProviderStress setReadPercent(int readPercent) {
+		mReadPercent = readPercent;
+		return this;
+	}
+	
+	public ProviderStress setThreadCounts(int... threadCounts) {
+		mThreadCounts = threadCounts;
+		return this;
+	}
+	
+	public static class Round {
+		public int threads;
+		public long reads;
+		public long writes;
+		public double opsPerSecond;
+		public long readP50Micros;
+		public long readP99Micros;
+		public long writeP50Micros;
+		public long writeP99Micros;
+		public long lockWaitP50Micros; // measured wait for the database lock of insert/update/delete
+		public long lockWaitP99Micros;
+		public int busyErrors;
+		public int otherErrors;
+		public int expectedNotifications;
+		public int receivedNotifications;
+		public String deadlock; // stack of the stuck thread, or null
+		
+		public boolean isPassed() {
+			return busyErrors == 0 && otherErrors == 0 && deadlock == null && receivedNotifications >= expectedNotifications;
+		}
+		
+		@Override
+		public String toString() {
+			return threads + " threads : " + (long)opsPerSecond + " ops/s (" + reads + " reads, " + writes + " writes)\n" +
+				"  read p50/p99 " + readP50Micros + "/" + readP99Micros + "us, write p50/p99 " + writeP50Micros + "/" + writeP99Micros + "us" +
+				", lock wait p50/p99 " + lockWaitP50Micros + "/" + lockWaitP99Micros + "us\n" +
+				"  busy " + busyErrors + ", errors " + otherErrors + ", notifications " + receivedNotifications + "/" + expectedNotifications +
+				(deadlock != null ? "\n  DEADLOCK\n" + deadlock : "") + (isPassed() ? "" : "\n  FAILED");
+		}
+	}
+	
+	public interface OnRoundListener {
+		void onRound(Round round);
+	}
+	
+	/**
+	 * Run a round for each thread count. (default is THREAD_COUNTS) Stop at the first deadlock.
+	 * The rows inserted by the stress are deleted at the end.
+	 */
+	public List<Round> run(OnRoundListener listener) throws InterruptedException {
+		List<Round> rounds = new ArrayList<Round>();
+		try {
+			for (int threads : mThreadCounts) {
+				Round round = runRound(threads);
+				Log.i(TAG, round.toString());
+				rounds.add(round);
+				if (listener != null)
+					listener.onRound(round);
+				if (round.deadlock != null)
+					break;
+			}
+		} finally {
+			mResolver.delete(CONTENT_URI, CheeseContract.NAME + " LIKE ?", new String[] { NAME_PREFIX + "%" });
+		}
+		return rounds;
+	}
+	
+	public Round runRound(int threads) throws InterruptedException {
+		HandlerThread observerThread = new HandlerThread(TAG + " observer");
+		observerThread.start();
+		final AtomicInteger received = new AtomicInteger();
+		ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+			@Override
+			public void onChange(boolean selfChange) {
+				received.incrementAndGet();
+			}
+		};
+		// applyBatch notifies the authority uri which is the parent of this uri.
+		mResolver.registerContentObserver(CONTENT_URI, true, observer);
+		
+		Round round = new Round();
+		round.threads = threads;
+		try {
+			StressUriOps.takeLockWaits(); // clear
+			long start = SystemClock.uptimeMillis();
+			long deadline = start + mRoundMillis;
+			Worker[] workers = new Worker[threads];
+			for (int i=0; i<threads; i++) {
+				workers[i] = new Worker(i, deadline);
+				workers[i].start();
+			}
+			for (Worker worker : workers) {
+				worker.join(Math.max(1, deadline + mDeadlockMillis - SystemClock.uptimeMillis()));
+				if (worker.isAlive() && round.deadlock == null)
+					round.deadlock = worker.getName() + "\n" + stackOf(worker);
+			}
+			long elapsed = SystemClock.uptimeMillis() - start;
+			
+			Latencies reads = new Latencies();
+			Latencies writes = new Latencies();
+			for (Worker worker : workers) {
+				reads.addAll(worker.mReads);
+				writes.addAll(worker.mWrites);
+				round.busyErrors += worker.mBusyErrors;
+				round.otherErrors += worker.mOtherErrors;
+				round.expectedNotifications += worker.mNotifications;
+			}
+			round.reads = reads.size();
+			round.writes = writes.size();
+			round.opsPerSecond = (reads.size() + writes.size()) * 1000.0 / Math.max(1, elapsed);
+			round.readP50Micros = reads.percentile(50) / 1000;
+			round.readP99Micros = reads.percentile(99) / 1000;
+			round.writeP50Micros = writes.percentile(50) / 1000;
+			round.writeP99Micros = writes.percentile(99) / 1000;
+			Latencies lockWaits = StressUriOps.takeLockWaits();
+			round.lockWaitP50Micros = lockWaits.percentile(50) / 1000;
+			round.lockWaitP99Micros = lockWaits.percentile(99) / 1000;
+			
+			// notifications are delivered asynchronously
+			long notificationDeadline = SystemClock.uptimeMillis() + mNotificationMillis;
+			while (received.get() < round.expectedNotifications && SystemClock.uptimeMillis() < notificationDeadline)
+				Thread.sleep(50);
+			round.receivedNotifications = received.get();
+		} finally {
+			mResolver.unregisterContentObserver(observer);
+			observerThread.quit();
+		}
+		return round;
+	}
+	
+	private static String stackOf(Thread thread) {
+		StringBuilder sb = new StringBuilder();
+		for (StackTraceElement e : thread.getStackTrace())
+			sb.append("    at ").append(e).append("\n");
+		return sb.toString();
+	}
+	
+	// SQLITE_BUSY and SQLITE_LOCKED. API 11 throws SQLiteDatabaseLockedException for them.
+	// API 10 throws them as plain SQLiteException while constraint, full, disk I/O, etc have their own subclasses.
+	private static boolean isBusy(SQLiteException e) {
+		if (Build.VERSION.SDK_INT >= 11)
+			return e instanceof SQLiteDatabaseLockedException;
+		return e.getClass() == SQLiteException.class;
+	}
+	
+	private class Worker extends Thread {
+		private final long mDeadline;
+		private final Random mRandom;
+		private final List<Long> mIds = new ArrayList<Long>();
+		private final Latencies mReads = new Latencies();
+		private final Latencies mWrites = new Latencies();
+		private int mBusyErrors;
+		private int mOtherErrors;
+		private int mNotifications; // expected
+		
+		Worker(int index, long deadline) {
+			super(TAG + " worker " + index);
+			mDeadline = deadline;
+			mRandom = new Random(index);
+		}
+		
+		@Override
+		public void run() {
+			while (SystemClock.uptimeMillis() < mDeadline) {
+				int r = mRandom.nextInt(100);
+				long start = System.nanoTime();
+				try {
+					if (r < mReadPercent) {
+						read(r);
+						mReads.add(System.nanoTime() - start);
+					} else {
+						write(r);
+						mWrites.add(System.nanoTime() - start);
+					}
+				} catch (SQLiteException e) {
+					if (isBusy(e))
+						mBusyErrors++;
+					else
+						mOtherErrors++;
+					Log.w(TAG, getName(), e);
+				} catch (Exception e) {
+					mOtherErrors++;
+					Log.w(TAG, getName(), e);
+				}
+			}
+		}
+		
+		private void read(int r) {
+			Cursor c;
+			if (r % 5 == 0)
+				c = mResolver.query(AggregateUriOps.countUri(CONTENT_URI), null, null, null, null);
+			else
+				c = mResolver.query(CONTENT_URI, new String[] { CheeseContract.ID, CheeseContract.NAME },
+						CheeseContract.FLAG1 + "=?", new String[] { String.valueOf(mRandom.nextInt(10)) }, null);
+			if (c != null) {
+				c.moveToLast();
+				c.close();
+			}
+		}
+		
+		private void write(int r) throws Exception {
+			int w = (r - mReadPercent) * 100 / (100 - mReadPercent); // 0~99 in writes
+			if (w < 40 || mIds.isEmpty()) {
+				Uri uri = mResolver.insert(CONTENT_URI, newValues());
+				if (uri != null) {
+					mIds.add(ContentUris.parseId(uri));
+					mNotifications++;
+				}
+			} else if (w < 65) {
+				long id = mIds.get(mRandom.nextInt(mIds.size()));
+				ContentValues values = new ContentValues();
+				values.put(CheeseContract.FLAG1, mRandom.nextInt(10));
+				if (mResolver.update(ContentUris.withAppendedId(CONTENT_URI, id), values, null, null) > 0)
+					mNotifications++;
+			} else if (w < 85) {
+				long id = mIds.remove(mRandom.nextInt(mIds.size()));
+				if (mResolver.delete(ContentUris.withAppendedId(CONTENT_URI, id), null, null) > 0)
+					mNotifications++;
+			} else {
+				ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+				for (int i=0; i<BATCH_SIZE; i++)
+					operations.add(ContentProviderOperation.newInsert(CONTENT_URI).withValues(newValues()).build());
+				ContentProviderResult[] results = mResolver.applyBatch(CheeseProvider.AUTHORITY, operations);
+				if (results != null) {
+					mNotifications++; // only once for the batch
+					for (ContentProviderResult result : results) {
+						if (result.uri != null)
+							mIds.add(ContentUris.parseId(result.uri));
+					}
+				}
+			}
+		}
+		
+		private ContentValues newValues() {
+			ContentValues values = new ContentValues();
+			values.put(CheeseContract.NAME, NAME_PREFIX + getName() + "-" + mRandom.nextInt());
+			values.put(CheeseContract.FLAG1, mRandom.nextInt(10));
+			return values;
+		}
+	}
+	
+	private static class Latencies {
+		private long[] mValues = new long[1024];
+		private int mSize;
+		
+		void add(long nanos) {
+			if (mSize == mValues.length)
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			mValues[mSize++] = nanos;
+		}
+		
+		void addAll(Latencies other) {
+			for (int i=0; i<other.mSize; i++)
+				add(other.mValues[i]);
+		}
+		
+		int size() {
+			return mSize;
+		}
+		
+		void clear() {
+			mSize = 0;
+		}
+		
+		long percentile(int percentile) {
+			if (mSize == 0) return 0;
+			long[] sorted = Arrays.copyOf(mValues, mSize);
+			Arrays.sort(sorted);
+			return sorted[Math.min(mSize - 1, mSize * percentile / 100)];
+		}
+	}
+	
+	public static class StressTask extends AsyncTask<Void, String, List<Round>> {
+		private ProgressDialog mProgress;
+		private Context mContext;
+		public StressTask(Context context) {
+			mContext = context;
+			mProgress = new ProgressDialog(context);
+			mProgress.setMessage("Stress Test...");
+			mProgress.setCancelable(false);
+		}
+		
+		@Override
+		protected void onPreExecute() {
+			mProgress.show();
+		}
+		
+		@Override
+		protected List<Round> doInBackground(Void... params) {
+			try {
+				return new ProviderStress(mContext.getContentResolver()).run(new OnRoundListener() {
+					@Override
+					public void onRound(Round round) {
+						publishProgress(round.threads + " threads : " + (long)round.opsPerSecond + " ops/s");
+					}
+				});
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		
+		@Override
+		protected void onProgressUpdate(String... values) {
+			mProgress.setMessage(values[0]);
+		}
+		
+		@Override
+		protected void onPostExecute(List<Round> result) {
+			mProgress.dismiss();
+			StringBuilder sb = new StringBuilder();
+			if (result != null) {
+				for (Round round : result)
+					sb.append(round).append("\n");
+			}
+			new AlertDialog.Builder(mContext).setTitle("Stress Test").setMessage(sb.toString()).setPositiveButton(android.R.string.ok, null).show();
+		}
+	}
+}
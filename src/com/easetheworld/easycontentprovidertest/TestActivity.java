@@ -2,7 +2,6 @@ package com.easetheworld.easycontentprovidertest;
 
 import java.io.FileNotFoundException;
 
-import android.content.AsyncQueryHandler;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -21,10 +20,12 @@ import android.widget.ListView;
 
 import com.easetheworld.easycontentprovidertest.CheeseProvider.CheeseContract;
 
+import dev.easetheworld.easycontentprovider.AsyncResolver;
+
 public class TestActivity extends FragmentActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 	
 	private SimpleCursorAdapter mAdapter;
-	private AsyncQueryHandler mQueryHandler;
+	private AsyncResolver mAsyncResolver;
 	
     /** Called when the activity is first created. */
     @Override
@@ -44,30 +45,7 @@ public class TestActivity extends FragmentActivity implements LoaderManager.Load
         
         getSupportLoaderManager().initLoader(0, null, this);
         
-		mQueryHandler = new AsyncQueryHandler(getContentResolver()) {
-
-			@Override
-			protected void onDeleteComplete(int token, Object cookie, int result) {
-				super.onDeleteComplete(token, cookie, result);
-			}
-
-			@Override
-			protected void onInsertComplete(int token, Object cookie, Uri uri) {
-				super.onInsertComplete(token, cookie, uri);
-			}
-
-			@Override
-			protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-				// TODO Auto-generated method stub
-				super.onQueryComplete(token, cookie, cursor);
-			}
-
-			@Override
-			protected void onUpdateComplete(int token, Object cookie, int result) {
-				// TODO Auto-generated method stub
-				super.onUpdateComplete(token, cookie, result);
-			}
-		};
+		mAsyncResolver = new AsyncResolver(getContentResolver());
     }
 
 	@Override
@@ -87,13 +65,24 @@ public class TestActivity extends FragmentActivity implements LoaderManager.Load
     
     @Override
 	public boolean onCreateOptionsMenu(Menu menu) {
-    	menu.add("Reset Cheese Data");
+    	menu.add(0, OPTION_RESET, 0, "Reset Cheese Data");
+    	menu.add(0, OPTION_STRESS, 1, "Stress Test");
 		return super.onCreateOptionsMenu(menu);
 	}
     
+    private static final int OPTION_RESET = 0;
+    private static final int OPTION_STRESS = 1;
+	
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		new Cheeses.InsertRandomCheeseDataTask(this).execute();
+		switch (item.getItemId()) {
+		case OPTION_RESET:
+			new Cheeses.InsertRandomCheeseDataTask(this).execute();
+			break;
+		case OPTION_STRESS:
+			new ProviderStress.StressTask(this).execute();
+			break;
+		}
 		return super.onOptionsItemSelected(item);
 	}
 	
@@ -112,7 +101,7 @@ public class TestActivity extends FragmentActivity implements LoaderManager.Load
     	AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo)item.getMenuInfo();
     	switch(item.getItemId()) {
     	case MENU_DELETE:
-	    	mQueryHandler.startDelete(0, null, Uri.withAppendedPath(CheeseContract.CONTENT_URI, ""+info.id), null, null);
+	    	mAsyncResolver.delete(Uri.withAppendedPath(CheeseContract.CONTENT_URI, ""+info.id), null, null, null);
     		break;
     	case MENU_MEMO:
     		try {
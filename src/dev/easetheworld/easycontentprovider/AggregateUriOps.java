@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+/**
+ * Count and aggregate of BaseUriOps without reading the rows.
+ * EasyContentProvider adds these uris for a collection BaseUriOps with BaseUriOps.setAggregateRoutes(true).
+ * The uri selection, time-to-live and read permission of the BaseUriOps are applied.
+ * 
+ * <pre>
+ * cheese/_count                                       one row of "_count"
+ * cheese/_count?groupBy=flag1                         "flag1", "_count" for each flag1
+ * cheese/_aggregate?sum=flag1&count=*&groupBy=name    "name", "sum_flag1", "_count" for each name
+ * </pre>
+ * 
+ * Functions are count, sum, total, min, max and avg. The column of the result is "function_column",
+ * except count=* which is "_count".
+ * selection, selectionArgs and sortOrder of query() are used as they are. projection is ignored.
+ * The cursor is notified by any write to the table of the BaseUriOps.
+ */
+public class AggregateUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpQuery {
+	
+	public static final String PATH_COUNT = "_count";
+	public static final String PATH_AGGREGATE = "_aggregate";
+	public static final String COLUMN_COUNT = "_count";
+	public static final String PARAM_GROUP_BY = "groupBy";
+	
+	private static final String[] FUNCTIONS = { "count", "sum", "total", "min", "max", "avg" };
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+	
+	/**
+	 * @param contentUri uri of BaseUriOps
+	 * @return uri which counts the rows of contentUri.
+	 */
+	public static Uri countUri(Uri contentUri) {
+		return Uri.withAppendedPath(contentUri, PATH_COUNT);
+	}
+	
+	/**
+	 * @param contentUri uri of BaseUriOps
+	 * @return uri to which function and groupBy parameters are appended.
+	 */
+	public static Uri aggregateUri(Uri contentUri) {
+		return Uri.withAppendedPath(contentUri, PATH_AGGREGATE);
+	}
+	
+	private final BaseUriOps mTarget;
+	private final boolean mIsCount;
+	
+	AggregateUriOps(BaseUriOps target, boolean isCount) {
+		super(target.getUriPath() + "/" + (isCount ? PATH_COUNT : PATH_AGGREGATE));
+		mTarget = target;
+		mIsCount = isCount;
+		setDatabaseName(target.getDatabaseName());
+	}
+	
+	// "xxx/1" of insert and "xxx/#" are not the ancestors of "xxx/_count", so observe the table.
+	@Override
+	protected String[] getObservedTables() {
+		return new String[] { mTarget.getTableName() };
+	}
+	
+	@Override
+	public Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		List<String> columns = new ArrayList<String>();
+		String groupBy = uri.getQueryParameter(PARAM_GROUP_BY);
+		if (groupBy != null) {
+			for (String column : groupBy.split(",")) {
+				checkIdentifier(column);
+				columns.add(column);
+			}
+		}
+		int groupByCount = columns.size();
+		if (mIsCount) {
+			columns.add("COUNT(*) AS " + COLUMN_COUNT);
+		} else {
+			for (String function : FUNCTIONS) {
+				for (String column : uri.getQueryParameters(function)) {
+					if ("count".equals(function) && "*".equals(column)) {
+						columns.add("COUNT(*) AS " + COLUMN_COUNT);
+					} else {
+						checkIdentifier(column);
+						columns.add(function + "(" + column + ") AS " + function + "_" + column);
+					}
+				}
+			}
+			if (columns.size() == groupByCount)
+				throw new IllegalArgumentException("No aggregate function : " + uri);
+		}
+		return mTarget.query(db, uri, columns.toArray(new String[columns.size()]), selection, selectionArgs, groupBy, sortOrder);
+	}
+	
+	// column names are put in sql as they are, so only plain identifiers are allowed.
+	static void checkIdentifier(String column) {
+		if (TextUtils.isEmpty(column) || !IDENTIFIER.matcher(column).matches())
+			throw new IllegalArgumentException("Invalid column : " + column);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Read-only database which is prebuilt and shipped in assets.
+ * Return this in EasyContentProvider.onCreateSQLiteOpenHelper(Context, String)
+ * and bind BaseUriOps to it with UriOps.setDatabaseName(),
+ * or attach it to other database with UriOps.attachDatabases().
+ * 
+ * The asset is copied to the database directory only once for each version.
+ * When the version is increased(ex. app update with new asset), new file is copied
+ * and swapped atomically, and the old file is deleted.
+ * The copy is synced to the disk before the swap, so a crash never leaves a truncated database under the final name.
+ */
+public class AssetDatabaseHelper extends SQLiteOpenHelper {
+	
+	private static final long DEFAULT_MMAP_SIZE = 64 * 1024 * 1024;
+	
+	private Context mContext;
+	private String mAssetName;
+	private int mVersion;
+	private long mMmapSize = DEFAULT_MMAP_SIZE;
+	private SQLiteDatabase mDatabase;
+	
+	/**
+	 * @param context
+	 * @param assetName file name of the database in assets.
+	 * @param version increase this when the asset is changed.
+	 */
+	public AssetDatabaseHelper(Context context, String assetName, int version) {
+		super(context, assetName, null, version);
+		mContext = context;
+		mAssetName = assetName;
+		mVersion = version;
+	}
+	
+	/**
+	 * Set the size of memory-mapped I/O so that reads are served from the page cache.
+	 * This is ignored by SQLite older than 3.7.17.
+	 * 
+	 * @param mmapSize bytes. 0 disables memory-mapped I/O.
+	 * @return this object to allow for chaining
+	 */
+	public AssetDatabaseHelper setMmapSize(long mmapSize) {
+		mMmapSize = mmapSize;
+		return this;
+	}
+	
+	@Override
+	public synchronized SQLiteDatabase getReadableDatabase() {
+		if (mDatabase != null && mDatabase.isOpen())
+			return mDatabase;
+		
+		File file = mContext.getDatabasePath(mAssetName + "." + mVersion);
+		if (!file.exists())
+			install(file);
+		mDatabase = SQLiteDatabase.openDatabase(file.getPath(), null,
+				SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		Cursor c = mDatabase.rawQuery("PRAGMA mmap_size=" + mMmapSize, null);
+		try {
+			c.moveToFirst();
+		} finally {
+			c.close();
+		}
+		return mDatabase;
+	}
+	
+	/**
+	 * This database is read-only. Any write will throw SQLiteException.
+	 */
+	@Override
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		return getReadableDatabase();
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (mDatabase != null && mDatabase.isOpen()) {
+			mDatabase.close();
+			mDatabase = null;
+		}
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		// never called. the database is already built.
+	}
+	
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// never called. new version is new file.
+	}
+	
+	// copy to temp file and rename it so that nobody sees half-copied database.
+	private void install(File file) {
+		File dir = file.getParentFile();
+		dir.mkdirs();
+		File tmp = new File(dir, file.getName() + ".tmp");
+		InputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = mContext.getAssets().open(mAssetName);
+			out = new FileOutputStream(tmp);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			out.getFD().sync(); // the renamed file is trusted forever, so it must be complete on the disk
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			tmp.delete();
+			throw new SQLiteException("Cannot install asset database " + mAssetName + " : " + e);
+		} finally {
+			closeQuietly(in);
+			closeQuietly(out);
+		}
+		
+		// delete the old versions. the name is from the context, which may rename it. (ex. RenamingDelegatingContext)
+		String prefix = mContext.getDatabasePath(mAssetName).getName() + ".";
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith(prefix) && !f.equals(file))
+					f.delete();
+			}
+		}
+	}
+	
+	private static void closeQuietly(Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,758 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Replacement of AsyncQueryHandler which runs every operation one by one in a single thread.
+ * Operations run in parallel on the executor and the result is returned as Future and/or Callback in main thread.
+ * 
+ * Identical queries(same uri, projection, selection, args and order) which are running at the same time
+ * share one provider call. Each caller gets its own cursor with its own position, and must close it.
+ * The shared cursor is closed when all of them are closed. A caller which will not take its cursor
+ * must cancel the Future. A Future which is garbage-collected without get() is cancelled too.
+ * A running query is not shared any more after a write through this resolver or a change notification
+ * of its authority, so a new query always sees the writes done before it.
+ * 
+ * Future.cancel() drops the result and interrupts the worker,
+ * but the call which already reached the provider runs to the end.
+ * (CancellationSignal is not available before API 16)
+ */
+public class AsyncResolver {
+	
+	/**
+	 * Called in main thread.
+	 */
+	public static interface Callback<T> {
+		void onComplete(T result);
+		void onError(Exception e);
+	}
+	
+	private static final int DEFAULT_THREADS = 4;
+	private static Executor sDefaultExecutor;
+	
+	/**
+	 * @return shared executor of 4 background threads.
+	 */
+	public static synchronized Executor getDefaultExecutor() {
+		if (sDefaultExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 10, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "AsyncResolver #" + mCount.incrementAndGet());
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			sDefaultExecutor = executor;
+		}
+		return sDefaultExecutor;
+	}
+	
+	private final ContentResolver mResolver;
+	private final Executor mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final HashMap<String, SharedQuery> mQueries = new HashMap<String, SharedQuery>(); // running queries
+	private final HashMap<String, Invalidator> mInvalidators = new HashMap<String, Invalidator>(); // authority - observer. guarded by mQueries
+	private boolean mCoalesceQueries = true;
+	
+	public AsyncResolver(ContentResolver resolver) {
+		this(resolver, getDefaultExecutor());
+	}
+	
+	public AsyncResolver(ContentResolver resolver, Executor executor) {
+		mResolver = resolver;
+		mExecutor = executor;
+	}
+	
+	/**
+	 * @param coalesce if false, every query calls the provider. default is true.
+	 * @return this object to allow for chaining
+	 */
+	public AsyncResolver setCoalesceQueries(boolean coalesce) {
+		mCoalesceQueries = coalesce;
+		return this;
+	}
+	
+	/**
+	 * Same as ContentResolver.query() in background.
+	 * 
+	 * @param callback can be null.
+	 * @return future of the cursor. the cursor must be closed.
+	 */
+	public Future<Cursor> query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs,
+			final String sortOrder, Callback<Cursor> callback) {
+		Callable<Cursor> callable = new Callable<Cursor>() {
+			@Override
+			public Cursor call() {
+				return mResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+			}
+		};
+		String key = mCoalesceQueries ? getQueryKey(uri, projection, selection, selectionArgs, sortOrder) : null;
+		SharedQuery shared = null;
+		QueryFuture future = null;
+		boolean isNew = false;
+		synchronized (mQueries) {
+			if (key != null) {
+				shared = mQueries.get(key);
+				if (shared != null)
+					future = shared.join(callback);
+			}
+			if (future == null) {
+				shared = new SharedQuery(key, uri.getAuthority(), callable);
+				future = shared.join(callback);
+				if (key != null) {
+					mQueries.put(key, shared);
+					observe(shared.mAuthority);
+				}
+				isNew = true;
+			}
+		}
+		if (isNew)
+			mExecutor.execute(shared);
+		return future;
+	}
+	
+	private static String getQueryKey(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		return uri + "\n" + Arrays.toString(projection) + "\n" + selection + "\n" + Arrays.toString(selectionArgs) + "\n" + sortOrder;
+	}
+	
+	// Stops sharing the running queries of the authority when it is changed.
+	private class Invalidator extends ContentObserver {
+		private final String mAuthority;
+		private int mRunningQueries;
+		
+		Invalidator(String authority) {
+			super(null); // onChange() in binder thread
+			mAuthority = authority;
+		}
+		
+		@Override
+		public void onChange(boolean selfChange) {
+			invalidate(mAuthority);
+		}
+	}
+	
+	// call with mQueries locked. observe while any shared query of the authority is running.
+	private void observe(String authority) {
+		Invalidator invalidator = mInvalidators.get(authority);
+		if (invalidator == null) {
+			invalidator = new Invalidator(authority);
+			mInvalidators.put(authority, invalidator);
+			mResolver.registerContentObserver(new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority).build(),
+					true, invalidator);
+		}
+		invalidator.mRunningQueries++;
+	}
+	
+	// call with mQueries locked.
+	private void unobserve(String authority) {
+		Invalidator invalidator = mInvalidators.get(authority);
+		if (invalidator != null && --invalidator.mRunningQueries == 0) {
+			mInvalidators.remove(authority);
+			mResolver.unregisterContentObserver(invalidator);
+		}
+	}
+	
+	// new queries don't join the running queries of the authority. they keep running for their callers.
+	private void invalidate(String authority) {
+		synchronized (mQueries) {
+			for (SharedQuery shared : mQueries.values()) {
+				if (shared.mAuthority.equals(authority))
+					shared.mInvalidated = true;
+			}
+		}
+	}
+	
+	// write, then invalidate the running queries so that the next query sees this write
+	private <T> Future<T> submitWrite(final String authority, final Callable<T> callable, Callback<T> callback) {
+		return submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return callable.call();
+				} finally {
+					invalidate(authority);
+				}
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Same as ContentResolver.insert() in background.
+	 * 
+	 * @param callback can be null.
+	 */
+	public Future<Uri> insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+		return submitWrite(uri.getAuthority(), new Callable<Uri>() {
+			@Override
+			public Uri call() {
+				return mResolver.insert(uri, values);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Same as ContentResolver.bulkInsert() in background.
+	 * 
+	 * @param callback can be null.
+	 */
+	public Future<Integer> bulkInsert(final Uri uri, final ContentValues[] values, Callback<Integer> callback) {
+		return submitWrite(uri.getAuthority(), new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return mResolver.bulkInsert(uri, values);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Same as ContentResolver.update() in background.
+	 * 
+	 * @param callback can be null.
+	 */
+	public Future<Integer> update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs,
+			Callback<Integer> callback) {
+		return submitWrite(uri.getAuthority(), new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return mResolver.update(uri, values, selection, selectionArgs);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Same as ContentResolver.delete() in background.
+	 * 
+	 * @param callback can be null.
+	 */
+	public Future<Integer> delete(final Uri uri, final String selection, final String[] selectionArgs, Callback<Integer> callback) {
+		return submitWrite(uri.getAuthority(), new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return mResolver.delete(uri, selection, selectionArgs);
+			}
+		}, callback);
+	}
+	
+	/**
+	 * Same as ContentResolver.applyBatch() in background.
+	 * 
+	 * @param callback can be null.
+	 */
+	public Future<ContentProviderResult[]> applyBatch(final String authority, final ArrayList<ContentProviderOperation> operations,
+			Callback<ContentProviderResult[]> callback) {
+		return submitWrite(authority, new Callable<ContentProviderResult[]>() {
+			@Override
+			public ContentProviderResult[] call() throws Exception {
+				return mResolver.applyBatch(authority, operations);
+			}
+		}, callback);
+	}
+	
+	private <T> Future<T> submit(Callable<T> callable, final Callback<T> callback) {
+		FutureTask<T> task = new FutureTask<T>(callable) {
+			@Override
+			protected void done() {
+				if (callback == null || isCancelled()) return;
+				try {
+					postComplete(callback, get());
+				} catch (ExecutionException e) {
+					postError(callback, e);
+				} catch (InterruptedException e) {
+					// never happens because it is done.
+				}
+			}
+		};
+		mExecutor.execute(task);
+		return task;
+	}
+	
+	private <T> void postComplete(final Callback<T> callback, final T result) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.onComplete(result);
+			}
+		});
+	}
+	
+	private <T> void postError(final Callback<T> callback, ExecutionException e) {
+		Throwable cause = e.getCause();
+		final Exception error = (cause instanceof Exception) ? (Exception)cause : e;
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				callback.onError(error);
+			}
+		});
+	}
+	
+	// One provider call shared by many QueryFutures.
+	private class SharedQuery extends FutureTask<Cursor> {
+		private final String mKey; // null if not coalesced
+		private final String mAuthority;
+		private boolean mInvalidated; // guarded by mQueries
+		// below are guarded by this
+		private final ArrayList<QueryFuture> mCallers = new ArrayList<QueryFuture>(); // only the callers with callback
+		private int mWaitingCallers;
+		private boolean mFinished;
+		private Cursor mCursor;
+		private int mPendingViews; // callers which didn't take the cursor yet
+		private int mOpenViews;
+		
+		SharedQuery(String key, String authority, Callable<Cursor> callable) {
+			super(callable);
+			mKey = key;
+			mAuthority = authority;
+		}
+		
+		// returns null if this is already finished or invalidated. call with mQueries locked.
+		synchronized QueryFuture join(Callback<Cursor> callback) {
+			if (mFinished || mInvalidated) return null;
+			QueryFuture future = new QueryFuture(this, callback);
+			if (callback != null) // the others are not referenced here so that they can be garbage-collected
+				mCallers.add(future);
+			mWaitingCallers++;
+			return future;
+		}
+		
+		@Override
+		protected void set(Cursor v) {
+			super.set(v);
+			if (isCancelled() && v != null)
+				v.close(); // all callers cancelled while the provider was running
+		}
+		
+		@Override
+		protected void done() {
+			Cursor cursor = null;
+			ExecutionException error = null;
+			if (!isCancelled()) {
+				try {
+					cursor = get();
+				} catch (ExecutionException e) {
+					error = e;
+				} catch (InterruptedException e) {
+					// never happens because it is done.
+				}
+			}
+			synchronized (this) {
+				mFinished = true;
+				mCursor = cursor;
+				mPendingViews = mWaitingCallers;
+				if (mCursor != null && mPendingViews == 0)
+					mCursor.close();
+			}
+			if (mKey != null) {
+				synchronized (mQueries) {
+					if (mQueries.get(mKey) == this)
+						mQueries.remove(mKey);
+					unobserve(mAuthority);
+				}
+			}
+			if (isCancelled()) return;
+			for (QueryFuture caller : mCallers) {
+				if (error != null) {
+					if (!caller.isCancelled())
+						postError(caller.mCallback, error);
+					continue;
+				}
+				Cursor view;
+				try {
+					view = caller.takeCursor();
+				} catch (CancellationException e) {
+					continue;
+				}
+				postComplete(caller.mCallback, view);
+			}
+		}
+		
+		// returns true if all callers cancelled. then no one can join.
+		synchronized boolean leave() {
+			mWaitingCallers--;
+			if (mWaitingCallers > 0) return false;
+			mFinished = true;
+			return true;
+		}
+		
+		synchronized void release() {
+			mOpenViews--;
+			closeIfUnused();
+		}
+		
+		// call with this locked. a finished caller will not take its cursor.
+		void dropPendingView() {
+			mPendingViews--;
+			closeIfUnused();
+		}
+		
+		private void closeIfUnused() {
+			if (mCursor != null && mOpenViews == 0 && mPendingViews == 0)
+				mCursor.close();
+		}
+	}
+	
+	private class QueryFuture implements Future<Cursor> {
+		private final SharedQuery mShared;
+		private final Callback<Cursor> mCallback;
+		// below are guarded by mShared
+		private boolean mCancelled;
+		private boolean mTaken;
+		private Cursor mView;
+		
+		QueryFuture(SharedQuery shared, Callback<Cursor> callback) {
+			mShared = shared;
+			mCallback = callback;
+		}
+		
+		// after the shared query is finished, this drops the cursor which is not taken yet.
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelShared = false;
+			synchronized (mShared) {
+				if (mCancelled || mTaken) return false;
+				mCancelled = true;
+				if (mShared.mFinished)
+					mShared.dropPendingView();
+				else
+					cancelShared = mShared.leave();
+			}
+			if (cancelShared)
+				mShared.cancel(mayInterruptIfRunning);
+			return true;
+		}
+		
+		// the caller dropped this future without get().
+		@Override
+		protected void finalize() throws Throwable {
+			try {
+				cancel(false);
+			} finally {
+				super.finalize();
+			}
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			synchronized (mShared) {
+				return mCancelled;
+			}
+		}
+		
+		@Override
+		public boolean isDone() {
+			return isCancelled() || mShared.isDone();
+		}
+		
+		@Override
+		public Cursor get() throws InterruptedException, ExecutionException {
+			if (isCancelled()) throw new CancellationException();
+			mShared.get();
+			return takeCursor();
+		}
+		
+		@Override
+		public Cursor get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (isCancelled()) throw new CancellationException();
+			mShared.get(timeout, unit);
+			return takeCursor();
+		}
+		
+		// the same cursor for every get() of this caller.
+		Cursor takeCursor() {
+			synchronized (mShared) {
+				if (mCancelled) throw new CancellationException();
+				if (!mTaken) {
+					mTaken = true;
+					mShared.mPendingViews--;
+					if (mShared.mCursor != null) {
+						mView = new CursorView(mShared);
+						mShared.mOpenViews++;
+					}
+				}
+				return mView;
+			}
+		}
+	}
+	
+	// Each caller's own position on the shared cursor.
+	// The shared cursor is moved to this position whenever a value is read.
+	private static class CursorView extends CursorWrapper {
+		private final SharedQuery mShared;
+		private final Cursor mCursor;
+		private int mPosition = -1;
+		private boolean mClosed;
+		// observers of this view on the shared cursor. unregistered by close(). guarded by this.
+		private final List<ContentObserver> mContentObservers = new ArrayList<ContentObserver>();
+		private final List<DataSetObserver> mDataSetObservers = new ArrayList<DataSetObserver>();
+		
+		CursorView(SharedQuery shared) {
+			super(shared.mCursor);
+			mShared = shared;
+			mCursor = shared.mCursor;
+		}
+		
+		@Override
+		public int getCount() {
+			synchronized (mCursor) {
+				return mCursor.getCount();
+			}
+		}
+		
+		@Override
+		public int getPosition() {
+			return mPosition;
+		}
+		
+		@Override
+		public boolean moveToPosition(int position) {
+			int count = getCount();
+			if (position >= count) {
+				mPosition = count;
+				return false;
+			}
+			if (position < 0) {
+				mPosition = -1;
+				return false;
+			}
+			mPosition = position;
+			return true;
+		}
+		
+		@Override
+		public boolean move(int offset) {
+			return moveToPosition(mPosition + offset);
+		}
+		
+		@Override
+		public boolean moveToFirst() {
+			return moveToPosition(0);
+		}
+		
+		@Override
+		public boolean moveToLast() {
+			return moveToPosition(getCount() - 1);
+		}
+		
+		@Override
+		public boolean moveToNext() {
+			return moveToPosition(mPosition + 1);
+		}
+		
+		@Override
+		public boolean moveToPrevious() {
+			return moveToPosition(mPosition - 1);
+		}
+		
+		@Override
+		public boolean isFirst() {
+			return mPosition == 0 && getCount() != 0;
+		}
+		
+		@Override
+		public boolean isLast() {
+			int count = getCount();
+			return mPosition == (count - 1) && count != 0;
+		}
+		
+		@Override
+		public boolean isBeforeFirst() {
+			return getCount() == 0 || mPosition == -1;
+		}
+		
+		@Override
+		public boolean isAfterLast() {
+			int count = getCount();
+			return count == 0 || mPosition == count;
+		}
+		
+		// call with mCursor locked
+		private void moveShared() {
+			if (mCursor.getPosition() != mPosition)
+				mCursor.moveToPosition(mPosition);
+		}
+		
+		@Override
+		public byte[] getBlob(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getBlob(columnIndex);
+			}
+		}
+		
+		@Override
+		public String getString(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getString(columnIndex);
+			}
+		}
+		
+		@Override
+		public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+			synchronized (mCursor) {
+				moveShared();
+				mCursor.copyStringToBuffer(columnIndex, buffer);
+			}
+		}
+		
+		@Override
+		public short getShort(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getShort(columnIndex);
+			}
+		}
+		
+		@Override
+		public int getInt(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getInt(columnIndex);
+			}
+		}
+		
+		@Override
+		public long getLong(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getLong(columnIndex);
+			}
+		}
+		
+		@Override
+		public float getFloat(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getFloat(columnIndex);
+			}
+		}
+		
+		@Override
+		public double getDouble(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.getDouble(columnIndex);
+			}
+		}
+		
+		@Override
+		public boolean isNull(int columnIndex) {
+			synchronized (mCursor) {
+				moveShared();
+				return mCursor.isNull(columnIndex);
+			}
+		}
+		
+		@Override
+		public void deactivate() {
+			// the shared cursor is used by others.
+		}
+		
+		@Override
+		public boolean requery() {
+			return false; // the shared cursor is used by others.
+		}
+		
+		@Override
+		public synchronized void registerContentObserver(ContentObserver observer) {
+			if (mClosed) return;
+			mCursor.registerContentObserver(observer);
+			mContentObservers.add(observer);
+		}
+		
+		@Override
+		public synchronized void unregisterContentObserver(ContentObserver observer) {
+			if (mContentObservers.remove(observer))
+				mCursor.unregisterContentObserver(observer);
+		}
+		
+		@Override
+		public synchronized void registerDataSetObserver(DataSetObserver observer) {
+			if (mClosed) return;
+			mCursor.registerDataSetObserver(observer);
+			mDataSetObservers.add(observer);
+		}
+		
+		@Override
+		public synchronized void unregisterDataSetObserver(DataSetObserver observer) {
+			if (mDataSetObservers.remove(observer))
+				mCursor.unregisterDataSetObserver(observer);
+		}
+		
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (mClosed) return;
+				mClosed = true;
+				// the shared cursor stays open for other views
+				for (ContentObserver observer : mContentObservers)
+					mCursor.unregisterContentObserver(observer);
+				mContentObservers.clear();
+				for (DataSetObserver observer : mDataSetObservers)
+					mCursor.unregisterDataSetObserver(observer);
+				mDataSetObservers.clear();
+			}
+			mShared.release();
+		}
+		
+		@Override
+		public synchronized boolean isClosed() {
+			return mClosed;
+		}
+	}
+}
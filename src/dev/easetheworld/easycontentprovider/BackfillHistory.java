@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * DatabaseHistory which fills a column of a large table without blocking the upgrade.
+ * 
+ * <pre>
+ * new BackfillHistory("cheese", "name_key", "TEXT", "lower(name)")
+ * </pre>
+ * 
+ * upgrade() only adds the column and saves the backfill in "_easy_backfill" table.
+ * After the database is opened, a background thread sets the column to the expression chunk by chunk in rowid order.
+ * Each chunk is one transaction with its checkpoint, so a killed process resumes from the last chunk.
+ * A failed chunk (ex. the database is busy) is retried with backoff from 1 second up to 1 minute,
+ * and the thread is stopped by EasyContentProvider.shutdown().
+ * Only null values are set, so the values written by the clients during the backfill are kept.
+ * 
+ * Until the backfill is done, the column in the projection of BaseUriOps.query() is read as COALESCE(column, expression).
+ * selection and sortOrder see the stored value.
+ * 
+ * The backfill only fills the existing rows. Keep the column of new and updated rows by the writes or by a trigger.
+ * <pre>
+ * CREATE TRIGGER cheese_name_key_insert AFTER INSERT ON cheese BEGIN
+ *     UPDATE cheese SET name_key=lower(NEW.name) WHERE rowid=NEW.rowid; END;
+ * </pre>
+ */
+public class BackfillHistory implements EasyContentProvider.DatabaseHistory {
+	
+	private static final String TAG = "BackfillHistory";
+	
+	static final String TABLE_NAME = "_easy_backfill";
+	private static final String COLUMN_TABLE = "table_name";
+	private static final String COLUMN_COLUMN = "column_name";
+	private static final String COLUMN_EXPRESSION = "expression";
+	private static final String COLUMN_CHUNK_ROWS = "chunk_rows";
+	private static final String COLUMN_LAST_ROWID = "last_rowid";
+	
+	private static final long CHUNK_PAUSE_MILLIS = 10; // let the waiting writers go between the chunks
+	private static final long RETRY_MIN_MILLIS = 1000; // backoff after a failed chunk, doubled up to the max
+	private static final long RETRY_MAX_MILLIS = 60 * 1000;
+	
+	private final String mTable;
+	private final String mColumn;
+	private final String mColumnDefinition;
+	private final String mExpression;
+	private int mChunkRows = 1000;
+	
+	/**
+	 * @param table
+	 * @param column
+	 * @param columnDefinition type and constraints of the new column. null if the column already exists.
+	 * @param expression sql expression of the other columns of the row. (ex. "lower(name)")
+	 */
+	public BackfillHistory(String table, String column, String columnDefinition, String expression) {
+		mTable = table;
+		mColumn = column;
+		mColumnDefinition = columnDefinition;
+		mExpression = expression;
+	}
+	
+	/**
+	 * @param rows rows updated in one transaction. default is 1000.
+	 * @return this object to allow for chaining
+	 */
+	public BackfillHistory setChunkRows(int rows) {
+		mChunkRows = rows;
+		return this;
+	}
+	
+	@Override
+	public void upgrade(SQLiteDatabase db) {
+		if (mColumnDefinition != null)
+			db.execSQL("ALTER TABLE " + mTable + " ADD COLUMN " + mColumn + " " + mColumnDefinition + ";");
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+				COLUMN_TABLE + " TEXT NOT NULL," +
+				COLUMN_COLUMN + " TEXT NOT NULL," +
+				COLUMN_EXPRESSION + " TEXT NOT NULL," +
+				COLUMN_CHUNK_ROWS + " INTEGER NOT NULL," +
+				COLUMN_LAST_ROWID + " INTEGER NOT NULL," +
+				"PRIMARY KEY (" + COLUMN_TABLE + "," + COLUMN_COLUMN + "));");
+		db.execSQL("INSERT OR REPLACE INTO " + TABLE_NAME + " VALUES (?,?,?,?,?);",
+				new Object[] { mTable, mColumn, mExpression, mChunkRows, Long.MIN_VALUE });
+	}
+	
+	/**
+	 * @param db
+	 * @return table name - (column - expression) of the backfills which are not done.
+	 */
+	static Map<String, Map<String, String>> getPendingColumns(SQLiteDatabase db) {
+		Map<String, Map<String, String>> pending = new HashMap<String, Map<String, String>>();
+		Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?", new String[] { TABLE_NAME });
+		try {
+			if (!c.moveToFirst()) return pending;
+		} finally {
+			c.close();
+		}
+		c = db.rawQuery("SELECT " + COLUMN_TABLE + "," + COLUMN_COLUMN + "," + COLUMN_EXPRESSION + " FROM " + TABLE_NAME, null);
+		try {
+			while (c.moveToNext()) {
+				Map<String, String> columns = pending.get(c.getString(0));
+				if (columns == null) {
+					columns = new HashMap<String, String>();
+					pending.put(c.getString(0), columns);
+				}
+				columns.put(c.getString(1), c.getString(2));
+			}
+		} finally {
+			c.close();
+		}
+		return pending;
+	}
+	
+	/**
+	 * Runs the backfills of a database one by one, and tells the provider when each is done.
+	 */
+	static class Runner extends Thread {
+		
+		private final EasyContentProvider mProvider;
+		private final String mDatabaseName;
+		private final SQLiteDatabase mDb;
+		
+		Runner(EasyContentProvider provider, String databaseName, SQLiteDatabase db) {
+			super(TAG + " " + databaseName);
+			mProvider = provider;
+			mDatabaseName = databaseName;
+			mDb = db;
+		}
+		
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			try {
+				long retryMillis = RETRY_MIN_MILLIS;
+				while (!isInterrupted()) {
+					long pauseMillis = CHUNK_PAUSE_MILLIS;
+					try {
+						String[] done = backfillChunk();
+						if (done == null) return;
+						if (done.length > 0)
+							mProvider.onBackfillDone(mDatabaseName, done[0], done[1]);
+						retryMillis = RETRY_MIN_MILLIS;
+					} catch (SQLException e) { // ex. busy. the chunk is rolled back, so try it again later.
+						Log.w(TAG, "Backfill of " + mDatabaseName + " failed. Retry after " + retryMillis + "ms.", e);
+						pauseMillis = retryMillis;
+						retryMillis = Math.min(retryMillis * 2, RETRY_MAX_MILLIS);
+					}
+					try {
+						Thread.sleep(pauseMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} finally {
+				mProvider.onBackfillStopped(mDatabaseName);
+			}
+		}
+		
+		/**
+		 * Backfill the next chunk of the first backfill.
+		 * 
+		 * @return null if no backfill is left, {table, column} if the backfill is done, otherwise empty array.
+		 */
+		private String[] backfillChunk() {
+			mDb.beginTransaction();
+			try {
+				String table, column, expression;
+				long chunkRows, lastRowId;
+				Cursor c = mDb.rawQuery("SELECT " + COLUMN_TABLE + "," + COLUMN_COLUMN + "," + COLUMN_EXPRESSION + "," +
+						COLUMN_CHUNK_ROWS + "," + COLUMN_LAST_ROWID + " FROM " + TABLE_NAME + " ORDER BY rowid LIMIT 1", null);
+				try {
+					if (!c.moveToFirst()) return null;
+					table = c.getString(0);
+					column = c.getString(1);
+					expression = c.getString(2);
+					chunkRows = c.getLong(3);
+					lastRowId = c.getLong(4);
+				} finally {
+					c.close();
+				}
+				
+				String[] keys = new String[] { table, column };
+				String[] result;
+				Long endRowId = null;
+				c = mDb.rawQuery("SELECT max(rowid) FROM (SELECT rowid FROM " + table + " WHERE rowid>? ORDER BY rowid LIMIT " + chunkRows + ")",
+						new String[] { String.valueOf(lastRowId) });
+				try {
+					if (c.moveToFirst() && !c.isNull(0))
+						endRowId = c.getLong(0);
+				} finally {
+					c.close();
+				}
+				if (endRowId == null) { // no more rows
+					mDb.delete(TABLE_NAME, COLUMN_TABLE + "=? AND " + COLUMN_COLUMN + "=?", keys);
+					result = keys;
+				} else {
+					mDb.execSQL("UPDATE " + table + " SET " + column + "=(" + expression + ") WHERE rowid>? AND rowid<=? AND " + column + " IS NULL",
+							new Object[] { lastRowId, endRowId });
+					mDb.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_LAST_ROWID + "=? WHERE " + COLUMN_TABLE + "=? AND " + COLUMN_COLUMN + "=?",
+							new Object[] { endRowId, table, column });
+					result = new String[0];
+				}
+				mDb.setTransactionSuccessful();
+				return result;
+			} finally {
+				mDb.endTransaction();
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Stream a consistent copy of the database while the provider is used.
+ * 
+ * <pre>
+ * new BackupUriOps("backup")
+ * 
+ * // client
+ * InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(resolver.openFileDescriptor(backupUri, "r"));
+ * </pre>
+ * 
+ * The database file is copied to the cache directory setPagesPerStep() pages at a time by a separate read-only connection.
+ * Each step holds the read lock only while the step is copied, so writers commit between the steps.
+ * If any writer commits during the copy(the change counter in the header is changed), the copy restarts
+ * like the backup api of SQLite, after a backoff which gives the writers time to finish.
+ * The lock is never held longer than one step, so the writers are not failed by the busy timeout.
+ * setMaxBytesPerSecond() doesn't slow down the copy while the lock is held.
+ * 
+ * openFile() returns after the copy is done and checked by "PRAGMA integrity_check",
+ * and throws FileNotFoundException if the database was modified during setMaxRestarts() restarts.
+ * Then the copy is streamed to the client and deleted.
+ * 
+ * A database in WAL journal mode cannot be opened, because the committed pages in the -wal file
+ * are not in the database file and the change counter doesn't change.
+ * 
+ * Only the app which declares this provider can open it unless setPermission(true).
+ */
+public class BackupUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpOpenFile {
+	
+	private static final String TAG = "BackupUriOps";
+	
+	private static final int CHANGE_COUNTER_OFFSET = 24; // in the database header
+	private static final long RESTART_DELAY_MILLIS = 100; // doubled on each restart up to the max
+	private static final long MAX_RESTART_DELAY_MILLIS = 5000;
+	
+	private int mPagesPerStep = 64;
+	private int mMaxRestarts = 10;
+	private long mMaxBytesPerSecond;
+	private boolean mIsReadable;
+	
+	/**
+	 * @param uriPath uri(excluding authority) that matched to this operations.
+	 */
+	public BackupUriOps(String uriPath) {
+		super(uriPath);
+	}
+	
+	/**
+	 * @param pages pages copied in one read lock. default is 64.
+	 * @return this object to allow for chaining
+	 */
+	public BackupUriOps setPagesPerStep(int pages) {
+		mPagesPerStep = pages;
+		return this;
+	}
+	
+	/**
+	 * @param restarts restarts after which the backup fails. default is 10.
+	 * @return this object to allow for chaining
+	 */
+	public BackupUriOps setMaxRestarts(int restarts) {
+		mMaxRestarts = restarts;
+		return this;
+	}
+	
+	/**
+	 * Limit the disk read of the copy and the stream so that the backup doesn't starve the provider.
+	 * 
+	 * @param bytesPerSecond 0 means no limit.
+	 * @return this object to allow for chaining
+	 */
+	public BackupUriOps setMaxBytesPerSecond(long bytesPerSecond) {
+		mMaxBytesPerSecond = bytesPerSecond;
+		return this;
+	}
+	
+	/**
+	 * @param isReadable if true, other apps can open the backup too.
+	 * @return this object to allow for chaining
+	 */
+	public BackupUriOps setPermission(boolean isReadable) {
+		mIsReadable = isReadable;
+		return this;
+	}
+	
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if (!"r".equals(mode))
+			throw new FileNotFoundException("Backup is read-only : " + uri);
+		if (!mIsReadable && Binder.getCallingUid() != Process.myUid())
+			throw new SecurityException("Permission Denied");
+		
+		SQLiteDatabase db = getProvider().getReadableDatabase(this);
+		if (isWal(db))
+			throw new FileNotFoundException("Backup of the database in WAL mode is not supported : " + uri);
+		File source = new File(db.getPath());
+		final File copy;
+		final ParcelFileDescriptor[] pipe;
+		try {
+			copy = File.createTempFile("backup", ".db", getProvider().getContext().getCacheDir());
+		} catch (IOException e) {
+			throw new FileNotFoundException(e.toString());
+		}
+		try {
+			copy(source, copy);
+			pipe = ParcelFileDescriptor.createPipe();
+		} catch (IOException e) {
+			copy.delete();
+			Log.w(TAG, "Backup of " + source + " failed", e);
+			throw new FileNotFoundException(e.toString());
+		}
+		new Thread(TAG + " " + source.getName()) {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+				try {
+					stream(copy, out);
+				} catch (IOException e) {
+					Log.w(TAG, "Backup stream of " + copy + " failed", e); // ex. the client closed it
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+					}
+					copy.delete();
+				}
+			}
+		}.start();
+		return pipe[0];
+	}
+	
+	/**
+	 * Copy a consistent snapshot of the database file.
+	 * 
+	 * @param source database file. not in WAL mode.
+	 * @param target
+	 * @return the number of restarts.
+	 * @throws IOException if the database is in WAL mode, modified during setMaxRestarts() restarts
+	 * or the copy fails the integrity check.
+	 */
+	public int copy(File source, File target) throws IOException {
+		SQLiteDatabase reader = SQLiteDatabase.openDatabase(source.getPath(), null,
+				SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		int restarts = 0;
+		try {
+			if (isWal(reader))
+				throw new IOException("Backup of the database in WAL mode is not supported : " + source);
+			int pageSize = (int)DatabaseUtils.longForQuery(reader, "PRAGMA page_size", null);
+			byte[] buffer = new byte[pageSize * mPagesPerStep];
+			long delay = RESTART_DELAY_MILLIS;
+			while (!copySteps(reader, source, target, buffer)) {
+				if (restarts >= mMaxRestarts)
+					throw new IOException(source.getName() + " was modified during " + restarts + " restarts");
+				Log.i(TAG, source.getName() + " was modified during the copy. restart after " + delay + "ms.");
+				SystemClock.sleep(delay);
+				delay = Math.min(delay * 2, MAX_RESTART_DELAY_MILLIS);
+				restarts++;
+			}
+		} finally {
+			reader.close();
+		}
+		checkIntegrity(target);
+		return restarts;
+	}
+	
+	private static boolean isWal(SQLiteDatabase db) {
+		return "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+	}
+	
+	private static void checkIntegrity(File copy) throws IOException {
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(copy.getPath(), null,
+				SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		try {
+			String result = DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null);
+			if (!"ok".equals(result))
+				throw new IOException("Backup copy is corrupt : " + result);
+		} finally {
+			db.close();
+		}
+	}
+	
+	// returns false if the database was modified during the copy.
+	private boolean copySteps(SQLiteDatabase reader, File source, File target, byte[] buffer) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		FileOutputStream out = new FileOutputStream(target);
+		boolean locked = false;
+		try {
+			long startTime = SystemClock.uptimeMillis();
+			long position = 0;
+			int changeCounter = 0;
+			while (true) {
+				beginRead(reader);
+				locked = true;
+				in.seek(CHANGE_COUNTER_OFFSET);
+				int counter = in.readInt();
+				if (position == 0)
+					changeCounter = counter;
+				else if (counter != changeCounter)
+					return false;
+				
+				long length = in.length();
+				if (position < length) {
+					in.seek(position);
+					int n = in.read(buffer, 0, (int)Math.min(buffer.length, length - position));
+					out.write(buffer, 0, n);
+					position += n;
+				}
+				endRead(reader); // one step at a time, so the writers don't wait longer than the busy timeout
+				locked = false;
+				if (position >= length) {
+					out.getFD().sync();
+					return true;
+				}
+				throttle(position, startTime);
+			}
+		} finally {
+			if (locked)
+				endRead(reader);
+			in.close();
+			out.close();
+		}
+	}
+	
+	// shared lock of the file. writers cannot commit until endRead().
+	private static void beginRead(SQLiteDatabase reader) {
+		reader.execSQL("BEGIN");
+		DatabaseUtils.longForQuery(reader, "SELECT count(*) FROM sqlite_master", null);
+	}
+	
+	private static void endRead(SQLiteDatabase reader) {
+		reader.execSQL("COMMIT");
+	}
+	
+	private void stream(File copy, OutputStream out) throws IOException {
+		InputStream in = new FileInputStream(copy);
+		try {
+			long startTime = SystemClock.uptimeMillis();
+			long total = 0;
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+				total += n;
+				throttle(total, startTime);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void throttle(long bytes, long startTime) {
+		if (mMaxBytesPerSecond <= 0) return;
+		long wait = bytes * 1000 / mMaxBytesPerSecond - (SystemClock.uptimeMillis() - startTime);
+		if (wait > 0)
+			SystemClock.sleep(wait);
+	}
+}
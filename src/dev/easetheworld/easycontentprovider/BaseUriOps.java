@@ -18,18 +18,31 @@
 
 package dev.easetheworld.easycontentprovider;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * Support basic database operations(query, insert, update, delete)
@@ -37,9 +50,12 @@ import android.text.TextUtils;
 public class BaseUriOps extends EasyContentProvider.UriOps implements
 	EasyContentProvider.OpQuery,
 	EasyContentProvider.OpInsert,
+	EasyContentProvider.OpBindInsert,
 	EasyContentProvider.OpUpdate,
 	EasyContentProvider.OpDelete {
 	
+	private static final String TAG = "BaseUriOps";
+	
 	private String mTableName;
 	
 	/**
@@ -101,8 +117,8 @@ public class BaseUriOps extends EasyContentProvider.UriOps implements
 		return this;
 	}
 	
-	private static int PERMISSION_READ = 1<<0;
-	private static int PERMISSION_WRITE = 1<<1;
+	static final int PERMISSION_READ = 1<<0;
+	static final int PERMISSION_WRITE = 1<<1;
 	private int mPermission = PERMISSION_READ | PERMISSION_WRITE;
 	
 	/**
@@ -125,71 +141,726 @@ public class BaseUriOps extends EasyContentProvider.UriOps implements
 			throw new SecurityException("Permission Denied");
 	}
 	
+	private CallerQuota mCallerQuota;
+	
+	/**
+	 * Limit the rate and the concurrent calls of each other app.
+	 * The app which declares this provider is never limited.
+	 * 
+	 * @param quota null means no limit. The same quota can be shared by many uris.
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps setCallerQuota(CallerQuota quota) {
+		mCallerQuota = quota;
+		return this;
+	}
+	
+	public CallerQuota getCallerQuota() {
+		return mCallerQuota;
+	}
+	
+	private static final int UID_NOT_LIMITED = -1;
+	
+	// check permission and quota. returns the uid which must be passed to exit().
+	int enter(int permission) {
+		enforcePermission(permission);
+		int uid = Binder.getCallingUid();
+		if (mCallerQuota == null || uid == Process.myUid()) return UID_NOT_LIMITED;
+		mCallerQuota.acquire(uid);
+		return uid;
+	}
+	
+	void exit(int uid) {
+		if (uid != UID_NOT_LIMITED)
+			mCallerQuota.release(uid);
+	}
+	
+	// SQLiteCursor runs the query when it is first moved, which is after exit().
+	// run it here so that the query is limited by the concurrent slot.
+	static Cursor execute(Cursor cursor, int uid) {
+		if (cursor != null && uid != UID_NOT_LIMITED)
+			cursor.getCount();
+		return cursor;
+	}
+	
+	private int mMaxRows;
+	private String mTimeColumn;
+	private long mTimeToLiveMillis;
+	private int mEvictionBatchSize = 100;
+	private final AtomicInteger mInsertsSinceEviction = new AtomicInteger();
+	private volatile long mLastExpiryCheck; // uptime when a read last scheduled the maintenance
+	private int mEvictedSinceNotify; // used only in maintenance thread
+	private long mIdleOverflow = -1; // used only in maintenance thread. -1 means not counted.
+	
+	/**
+	 * Keep at most maxRows rows in the table. The oldest rows are evicted.
+	 * Each insert() and bulkInsert() counts the rows and evicts the overflow in its transaction,
+	 * so the table has no more than maxRows rows after the commit.
+	 * The rows written by other ways (ex. raw sql) are evicted by the next insert, DatabaseMaintenance or evict().
+	 * 
+	 * @param maxRows 0 means no limit.
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps setMaxRows(int maxRows) {
+		mMaxRows = maxRows;
+		return this;
+	}
+	
+	/**
+	 * Evict the rows older than timeToLiveMillis. Expired rows are not returned by query() even before eviction.
+	 * If insert values don't have timeColumn, current time is put.
+	 * Expired rows are deleted after every setEvictionBatchSize() inserted rows, and by DatabaseMaintenance or evict().
+	 * query() schedules DatabaseMaintenance at most once per timeToLiveMillis, so the expired rows of a table
+	 * which is only read are deleted too, when the provider is idle.
+	 * 
+	 * @param timeColumn INTEGER column of System.currentTimeMillis(). index on this column is recommended.
+	 * @param timeToLiveMillis
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps setTimeToLive(String timeColumn, long timeToLiveMillis) {
+		mTimeColumn = timeColumn;
+		mTimeToLiveMillis = timeToLiveMillis;
+		return this;
+	}
+	
+	/**
+	 * Eviction deletes at most this many rows at once, and expired rows are deleted after every this many inserted rows
+	 * and in DatabaseMaintenance when the provider is idle. Default is 100.
+	 * 
+	 * @param batchSize
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps setEvictionBatchSize(int batchSize) {
+		mEvictionBatchSize = batchSize;
+		return this;
+	}
+	
+	private boolean isEvictable() {
+		return mMaxRows > 0 || mTimeColumn != null;
+	}
+	
+	/**
+	 * Delete one batch of expired rows and overflow rows.
+	 * 
+	 * @param db
+	 * @return deleted rows
+	 */
+	public int evict(SQLiteDatabase db) {
+		return evict(db, countOverflow(db));
+	}
+	
+	// rows over maxRows. counted once for many batches.
+	private long countOverflow(SQLiteDatabase db) {
+		return mMaxRows > 0 ? DatabaseUtils.queryNumEntries(db, mTableName) - mMaxRows : 0;
+	}
+	
+	// one batch. overflow is the rows over maxRows before this batch.
+	private int evict(SQLiteDatabase db, long overflow) {
+		int deleted = 0;
+		if (mTimeColumn != null) {
+			deleted += db.delete(mTableName, "rowid IN (SELECT rowid FROM " + mTableName + " WHERE " + mTimeColumn + "<? LIMIT " + mEvictionBatchSize + ")",
+					new String[] { String.valueOf(System.currentTimeMillis() - mTimeToLiveMillis) });
+		}
+		overflow -= deleted; // expired rows were counted too
+		if (mMaxRows > 0 && deleted < mEvictionBatchSize && overflow > 0) {
+			String order = (mTimeColumn != null) ? mTimeColumn : "rowid";
+			deleted += db.delete(mTableName, "rowid IN (SELECT rowid FROM " + mTableName + " ORDER BY " + order + " LIMIT " + Math.min(overflow, mEvictionBatchSize - deleted) + ")", null);
+		}
+		return deleted;
+	}
+	
+	// evict in insert() and bulkInsert(). must be in the transaction of the insert.
+	// the overflow on every insert(count is cheap because the table is capped), expired rows after every batch size of rows.
+	private void evictAfterInsert(SQLiteDatabase db, int insertedRows) {
+		if (mMaxRows > 0) {
+			long overflow = countOverflow(db);
+			while (overflow > 0) {
+				int n = evict(db, overflow); // expired rows first, then the oldest
+				if (n == 0) break;
+				overflow -= n;
+			}
+		}
+		if (mTimeColumn == null) return;
+		int inserts = mInsertsSinceEviction.addAndGet(insertedRows);
+		if (inserts < mEvictionBatchSize || !mInsertsSinceEviction.compareAndSet(inserts, 0))
+			return; // not yet, or the other thread has added and will evict
+		int limit = insertedRows + mEvictionBatchSize;
+		int deleted = 0;
+		int n;
+		do {
+			n = evict(db, 0);
+			deleted += n;
+		} while (n >= mEvictionBatchSize && deleted < limit);
+	}
+	
+	// reads don't schedule the maintenance. schedule it for the expired rows, at most once per time to live.
+	private void scheduleExpiry() {
+		long now = SystemClock.uptimeMillis();
+		if (mLastExpiryCheck != 0 && now - mLastExpiryCheck < mTimeToLiveMillis) return;
+		mLastExpiryCheck = now;
+		getProvider().recordWrite(this, 0);
+	}
+	
+	private ContentValues putTime(ContentValues values, long now) {
+		if (mTimeColumn == null || values.containsKey(mTimeColumn))
+			return values;
+		ContentValues timed = new ContentValues(values);
+		timed.put(mTimeColumn, now);
+		return timed;
+	}
+	
+	private static final String EXTERNAL_DIR = "easy_external";
+	private static final long ORPHAN_GRACE_MILLIS = 10 * 60 * 1000;
+	private static final int ORPHAN_FILES_PER_SLICE = 100;
+	
+	private static class ExternalColumn {
+		String mColumn;
+		String mFileColumn;
+		int mThresholdBytes;
+	}
+	
+	private List<ExternalColumn> mExternalColumns;
+	private BaseUriOps mExternalOwner; // the ops of the same table which has the external columns
+	private File[] mOrphanCandidates; // used only in maintenance thread
+	private int mOrphanIndex;
+	
+	/**
+	 * Move the large values of the column to files so that the row stays small.
+	 * The column becomes null and fileColumn has the file name. Read the file with ExternalFileUriOps.
+	 * Smaller values stay in the column and fileColumn is null.
+	 * This applies to insert, bulkInsert(ContentValues[]) and update. fileColumn given by the client is ignored.
+	 * bulkInsert(String[], RowBinder) cannot see the bound values, so it throws IllegalStateException for these columns.
+	 * Set it on one BaseUriOps of the table, and shareExternalColumns() on the other BaseUriOps of the same table.
+	 * 
+	 * The files of the rows deleted or updated by delete() and update() are deleted after the commit.
+	 * (in applyBatch, after the batch is committed)
+	 * The files of the rows evicted or written in other transactions are orphans.
+	 * They are deleted in DatabaseMaintenance when the provider is idle, or by collectOrphanFiles().
+	 * 
+	 * @param column TEXT or BLOB column.
+	 * @param fileColumn TEXT column for the file name. index on this column is recommended.
+	 * @param thresholdBytes values larger than this are moved.
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps setExternalColumn(String column, String fileColumn, int thresholdBytes) {
+		ExternalColumn external = new ExternalColumn();
+		external.mColumn = column;
+		external.mFileColumn = fileColumn;
+		external.mThresholdBytes = thresholdBytes;
+		if (mExternalColumns == null)
+			mExternalColumns = new ArrayList<ExternalColumn>();
+		mExternalColumns.add(external);
+		return this;
+	}
+	
+	/**
+	 * Use the external columns of other BaseUriOps of the same table, for example "cheese/#" of "cheese".
+	 * The orphan files are collected only by the owner.
+	 * 
+	 * @param owner BaseUriOps which has setExternalColumn().
+	 * @return this object to allow for chaining
+	 */
+	public BaseUriOps shareExternalColumns(BaseUriOps owner) {
+		if (!mTableName.equals(owner.mTableName))
+			throw new IllegalArgumentException("External columns of other table : " + owner.mTableName);
+		mExternalOwner = owner;
+		return this;
+	}
+	
+	private List<ExternalColumn> getExternalColumns() {
+		return mExternalOwner != null ? mExternalOwner.mExternalColumns : mExternalColumns;
+	}
+	
+	/**
+	 * @param columns
+	 * @return true if any of the columns is an external column or its fileColumn.
+	 */
+	boolean hasExternalColumn(String[] columns) {
+		List<ExternalColumn> externals = getExternalColumns();
+		if (externals == null) return false;
+		for (ExternalColumn external : externals) {
+			for (String column : columns) {
+				if (external.mColumn.equals(column) || external.mFileColumn.equals(column))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	// directory of the external files of this table
+	File getExternalDir() {
+		File dir = new File(new File(getProvider().getContext().getFilesDir(), EXTERNAL_DIR), mTableName);
+		dir.mkdirs();
+		return dir;
+	}
+	
+	/**
+	 * @param name the value of fileColumn
+	 * @return the external file.
+	 * @throws IllegalArgumentException if the name is not a file in the external directory.
+	 */
+	File getExternalFile(String name) {
+		if (name.indexOf('/') >= 0 || name.startsWith("."))
+			throw new IllegalArgumentException("Invalid external file : " + name);
+		return new File(getExternalDir(), name);
+	}
+	
+	// move large values to files. returns values itself if nothing is changed.
+	private ContentValues externalize(ContentValues values) {
+		List<ExternalColumn> externals = getExternalColumns();
+		if (externals == null) return values;
+		ContentValues result = values;
+		for (ExternalColumn external : externals) {
+			if (!values.containsKey(external.mColumn) && !values.containsKey(external.mFileColumn)) continue;
+			if (result == values)
+				result = new ContentValues(values);
+			result.remove(external.mFileColumn);
+			if (!values.containsKey(external.mColumn)) continue;
+			
+			Object value = values.get(external.mColumn);
+			byte[] bytes = null;
+			if (value instanceof byte[])
+				bytes = (byte[])value;
+			else if (value instanceof String && ((String)value).length() > external.mThresholdBytes / 3) // UTF-8 is 3 bytes at most
+				bytes = getUtf8Bytes((String)value);
+			if (bytes != null && bytes.length > external.mThresholdBytes) {
+				result.putNull(external.mColumn);
+				result.put(external.mFileColumn, writeExternalFile(bytes));
+			} else {
+				result.putNull(external.mFileColumn); // the old file becomes orphan
+			}
+		}
+		return result;
+	}
+	
+	private static byte[] getUtf8Bytes(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString()); // never happens
+		}
+	}
+	
+	// write to temp file and rename it so that nobody sees half-written file.
+	private String writeExternalFile(byte[] bytes) {
+		File dir = getExternalDir();
+		String name = UUID.randomUUID().toString();
+		File tmp = new File(dir, "." + name);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(new File(dir, name)))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			tmp.delete();
+			throw new SQLException("Cannot write external file : " + e);
+		}
+		return name;
+	}
+	
+	// file names of the external columns of the rows. only the columns in values if values is not null.
+	private List<String> queryExternalFiles(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+		List<ExternalColumn> externals = getExternalColumns();
+		if (externals == null) return null;
+		List<String> names = null;
+		for (ExternalColumn external : externals) {
+			if (values != null && !values.containsKey(external.mColumn)) continue;
+			String where = external.mFileColumn + " IS NOT NULL";
+			Cursor c = db.query(mTableName, new String[] { external.mFileColumn },
+					TextUtils.isEmpty(selection) ? where : "(" + selection + ") AND " + where, selectionArgs, null, null, null);
+			try {
+				while (c.moveToNext()) {
+					if (names == null)
+						names = new ArrayList<String>();
+					names.add(c.getString(0));
+				}
+			} finally {
+				c.close();
+			}
+		}
+		return names;
+	}
+	
+	// delete the files of the rows which are not referred to after the commit.
+	// in other transaction than applyBatch, the commit is unknown so they are left to collectOrphanFiles().
+	private void deleteExternalFilesAfterCommit(boolean inOuterTransaction, final List<String> names) {
+		if (names == null) return;
+		Runnable delete = new Runnable() {
+			@Override
+			public void run() {
+				for (String name : names)
+					getExternalFile(name).delete();
+			}
+		};
+		if (!inOuterTransaction)
+			delete.run();
+		else
+			getProvider().runAfterBatch(delete);
+	}
+	
+	/**
+	 * Delete the external files which no row refers to.
+	 * Files newer than 10 minutes are kept because their row may not be committed yet.
+	 * 
+	 * @param db
+	 * @return the number of deleted files.
+	 */
+	public int collectOrphanFiles(SQLiteDatabase db) {
+		if (getExternalColumns() == null) return 0;
+		File[] files = getExternalDir().listFiles();
+		if (files == null) return 0;
+		long graceTime = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+		int deleted = 0;
+		for (File file : files) {
+			if (deleteIfOrphan(db, file, graceTime))
+				deleted++;
+		}
+		return deleted;
+	}
+	
+	private boolean deleteIfOrphan(SQLiteDatabase db, File file, long graceTime) {
+		if (file.lastModified() > graceTime) return false;
+		for (ExternalColumn external : getExternalColumns()) {
+			long count = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM (SELECT 1 FROM " + mTableName +
+					" WHERE " + external.mFileColumn + "=? LIMIT 1)", new String[] { file.getName() });
+			if (count > 0) return false;
+		}
+		return file.delete();
+	}
+	
+	// check a slice of the external files. returns true if there are more.
+	private boolean collectOrphanFilesOnIdle(SQLiteDatabase db) {
+		if (mOrphanCandidates == null) {
+			File[] files = getExternalDir().listFiles();
+			if (files == null || files.length == 0) return false;
+			mOrphanCandidates = files;
+			mOrphanIndex = 0;
+		}
+		long graceTime = System.currentTimeMillis() - ORPHAN_GRACE_MILLIS;
+		int end = Math.min(mOrphanIndex + ORPHAN_FILES_PER_SLICE, mOrphanCandidates.length);
+		for (; mOrphanIndex < end; mOrphanIndex++)
+			deleteIfOrphan(db, mOrphanCandidates[mOrphanIndex], graceTime);
+		if (mOrphanIndex < mOrphanCandidates.length)
+			return true;
+		mOrphanCandidates = null;
+		return false;
+	}
+	
+	/**
+	 * Evict batch by batch in DatabaseMaintenance.
+	 * Notify only once after all evictions.
+	 * Then delete the orphan external files, if this has the external columns.
+	 */
+	@Override
+	protected boolean onIdle(SQLiteDatabase db) {
+		if (isEvictable()) {
+			if (mIdleOverflow < 0)
+				mIdleOverflow = Math.max(0, countOverflow(db));
+			int deleted = evict(db, mIdleOverflow);
+			mIdleOverflow = Math.max(0, mIdleOverflow - deleted);
+			mEvictedSinceNotify += deleted;
+			if (deleted >= mEvictionBatchSize)
+				return true;
+			mIdleOverflow = -1;
+			if (mEvictedSinceNotify > 0) {
+				mEvictedSinceNotify = 0;
+				notifyChange();
+			}
+		}
+		if (mExternalColumns != null) // not shared ones
+			return collectOrphanFilesOnIdle(db);
+		return false;
+	}
+	
+	private boolean mAggregateRoutes;
+	
+	/**
+	 * Add count and aggregate uris(uriPath/_count, uriPath/_aggregate) for this operations. Default is false.
+	 * Only for a collection uri path which has no '#' or '*'.
+	 * The routes are siblings of "uriPath/*", which would lose the rows named "_count" or "_aggregate",
+	 * so the provider throws IllegalStateException in onCreate() if such uri exists.
+	 * 
+	 * @param enabled
+	 * @return this object to allow for chaining
+	 * @see AggregateUriOps
+	 */
+	public BaseUriOps setAggregateRoutes(boolean enabled) {
+		if (enabled && (getUriPath().indexOf('#') >= 0 || getUriPath().indexOf('*') >= 0))
+			throw new IllegalArgumentException("Aggregate routes need a collection uri path : " + getUriPath());
+		mAggregateRoutes = enabled;
+		return this;
+	}
+	
+	boolean hasAggregateRoutes() {
+		return mAggregateRoutes;
+	}
+	
 	@Override
 	public Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-		enforcePermission(PERMISSION_READ);
-		
-		selection = appendUriSelection(selection);
-		selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
-		
-		SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-		qb.setTables(mTableName);
-		return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+		return query(db, uri, projection, selection, selectionArgs, null, sortOrder);
+	}
+	
+	private volatile Map<String, String> mBackfillColumns; // column - fallback expression of BackfillHistory. copy on write.
+	
+	// the provider sets this when the database is prepared.
+	void setBackfillColumns(Map<String, String> columns) {
+		mBackfillColumns = columns == null || columns.isEmpty() ? null : new HashMap<String, String>(columns);
+	}
+	
+	void removeBackfillColumn(String column) {
+		Map<String, String> columns = mBackfillColumns;
+		if (columns == null || !columns.containsKey(column)) return;
+		columns = new HashMap<String, String>(columns);
+		columns.remove(column);
+		mBackfillColumns = columns.isEmpty() ? null : columns;
+	}
+	
+	// read the columns which are not backfilled yet as COALESCE(column, expression).
+	private String[] getBackfillProjection(SQLiteDatabase db, String[] projection, Map<String, String> columns) {
+		if (projection == null) { // all columns
+			// not PRAGMA table_info() which doesn't take a join or a sub query as the table
+			Cursor c = db.rawQuery("SELECT * FROM " + mTableName + " LIMIT 0", null);
+			try {
+				projection = c.getColumnNames();
+			} finally {
+				c.close();
+			}
+		}
+		String[] result = new String[projection.length];
+		for (int i=0; i<projection.length; i++) {
+			String expression = columns.get(projection[i]);
+			result[i] = expression == null ? projection[i] : "COALESCE(" + projection[i] + ",(" + expression + ")) AS " + projection[i];
+		}
+		return result;
+	}
+	
+	// query with group by. AggregateUriOps uses this.
+	Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String groupBy, String sortOrder) {
+		int uid = enter(PERMISSION_READ);
+		try {
+			Map<String, String> backfillColumns = mBackfillColumns;
+			if (backfillColumns != null)
+				projection = getBackfillProjection(db, projection, backfillColumns);
+			selection = appendUriSelection(selection);
+			selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
+			if (mTimeColumn != null) { // hide expired rows
+				scheduleExpiry();
+				selection = TextUtils.isEmpty(selection) ? mTimeColumn + ">=?" : "(" + selection + ") AND " + mTimeColumn + ">=?";
+				selectionArgs = appendSelectionArgs(selectionArgs, new String[] { String.valueOf(System.currentTimeMillis() - mTimeToLiveMillis) });
+			}
+			
+			SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+			qb.setTables(mTableName);
+			return execute(qb.query(db, projection, selection, selectionArgs, groupBy, null, sortOrder), uid);
+		} finally {
+			exit(uid);
+		}
 	}
 	
 	@Override
 	public Uri insert(SQLiteDatabase db, Uri uri, ContentValues values) {
-		enforcePermission(PERMISSION_WRITE);
-		
-		Uri newUri = null;
-		long rowId = db.insert(mTableName, null, values);
-		if (rowId >= 0)
-			newUri = ContentUris.withAppendedId(uri, rowId);
-		return newUri;
+		int uid = enter(PERMISSION_WRITE);
+		try {
+			Uri newUri = null;
+			boolean evictable = isEvictable();
+			if (evictable) // evict in the same transaction
+				db.beginTransaction();
+			try {
+				long rowId = db.insert(mTableName, null, externalize(putTime(values, System.currentTimeMillis())));
+				if (rowId >= 0) {
+					newUri = ContentUris.withAppendedId(uri, rowId);
+					evictAfterInsert(db, 1);
+				}
+				if (evictable)
+					db.setTransactionSuccessful();
+			} finally {
+				if (evictable)
+					db.endTransaction();
+			}
+			return newUri;
+		} finally {
+			exit(uid);
+		}
 	}
 	
 	@Override
 	public int bulkInsert(SQLiteDatabase db, Uri uri, ContentValues[] values) {
-		enforcePermission(PERMISSION_WRITE);
-		
-		int result = 0;
-		// use DatabaseUtils.InsertHelper to reuse compiled sql statement
-		DatabaseUtils.InsertHelper insertHelper = new DatabaseUtils.InsertHelper(db, mTableName);
-		db.beginTransaction();
+		int uid = enter(PERMISSION_WRITE);
 		try {
-			for (int i = 0; i < values.length; i++) {
-				if (insertHelper.insert(values[i]) >= 0)
-					result++;
+			int result = 0;
+			// use DatabaseUtils.InsertHelper to reuse compiled sql statement
+			DatabaseUtils.InsertHelper insertHelper = new DatabaseUtils.InsertHelper(db, mTableName);
+			long now = System.currentTimeMillis();
+			db.beginTransaction();
+			try {
+				for (int i = 0; i < values.length; i++) {
+					if (insertHelper.insert(externalize(putTime(values[i], now))) >= 0)
+						result++;
+				}
+				evictAfterInsert(db, result);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				insertHelper.close();
 			}
-			db.setTransactionSuccessful();
+			return result;
 		} finally {
-			db.endTransaction();
-			insertHelper.close();
+			exit(uid);
 		}
-		return result;
 	}
-
+	
+	// compiled statement of the last bind insert. guarded by mBindLock.
+	private final Object mBindLock = new Object();
+	private SQLiteDatabase mBindDatabase;
+	private String[] mBindColumns;
+	private SQLiteStatement mBindStatement;
+	private int mBindTimeIndex;
+	
+	@Override
+	public int bulkInsert(SQLiteDatabase db, Uri uri, String[] columns, RowBinder binder) {
+		if (hasExternalColumn(columns)) // the bound values cannot be moved to files
+			throw new IllegalStateException("RowBinder cannot insert the external columns of " + mTableName + ". Use ContentValues.");
+		int uid = enter(PERMISSION_WRITE);
+		try {
+			synchronized (mBindLock) {
+				SQLiteStatement statement = getBindStatement(db, columns);
+				int result = 0;
+				int skipped = 0;
+				SQLException firstError = null;
+				long now = System.currentTimeMillis();
+				db.beginTransaction();
+				try {
+					while (true) {
+						statement.clearBindings();
+						if (!binder.bindNextRow(statement))
+							break;
+						if (mBindTimeIndex > 0)
+							statement.bindLong(mBindTimeIndex, now);
+						try {
+							statement.executeInsert();
+							result++;
+						} catch (SQLException e) {
+							// skip the row like DatabaseUtils.InsertHelper does
+							if (firstError == null)
+								firstError = e;
+							skipped++;
+						}
+					}
+					evictAfterInsert(db, result);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+				if (skipped > 0)
+					Log.w(TAG, "bulkInsert to " + mTableName + " skipped " + skipped + " of " + (result + skipped) + " rows. first error :", firstError);
+				return result;
+			}
+		} finally {
+			exit(uid);
+		}
+	}
+	
+	@Override
+	protected void onShutdown() {
+		synchronized (mBindLock) {
+			if (mBindStatement != null) {
+				mBindStatement.close();
+				mBindStatement = null;
+				mBindDatabase = null;
+				mBindColumns = null;
+			}
+		}
+	}
+	
+	// reuse the statement while the same columns are inserted to the same database.
+	private SQLiteStatement getBindStatement(SQLiteDatabase db, String[] columns) {
+		if (mBindStatement != null && mBindDatabase == db && Arrays.equals(mBindColumns, columns))
+			return mBindStatement;
+		if (mBindStatement != null)
+			mBindStatement.close();
+		
+		boolean addTime = (mTimeColumn != null && !Arrays.asList(columns).contains(mTimeColumn));
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+		sql.append(mTableName).append(" (");
+		for (int i=0; i<columns.length; i++) {
+			if (i > 0) sql.append(",");
+			sql.append(columns[i]);
+		}
+		if (addTime)
+			sql.append(columns.length > 0 ? "," : "").append(mTimeColumn);
+		sql.append(") VALUES (");
+		int count = columns.length + (addTime ? 1 : 0);
+		for (int i=0; i<count; i++)
+			sql.append(i > 0 ? ",?" : "?");
+		sql.append(")");
+		
+		mBindStatement = db.compileStatement(sql.toString());
+		mBindDatabase = db;
+		mBindColumns = columns.clone();
+		mBindTimeIndex = addTime ? count : 0;
+		return mBindStatement;
+	}
+	
 	@Override
 	public int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-		enforcePermission(PERMISSION_WRITE);
-		
-		selection = appendUriSelection(selection);
-		selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
-		
-		return db.update(mTableName, values, selection, selectionArgs);
+		int uid = enter(PERMISSION_WRITE);
+		try {
+			selection = appendUriSelection(selection);
+			selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
+			
+			if (getExternalColumns() == null)
+				return db.update(mTableName, externalize(values), selection, selectionArgs);
+			boolean inOuterTransaction = db.inTransaction();
+			List<String> oldFiles;
+			int count;
+			db.beginTransaction();
+			try {
+				oldFiles = queryExternalFiles(db, values, selection, selectionArgs);
+				count = db.update(mTableName, externalize(values), selection, selectionArgs);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			deleteExternalFilesAfterCommit(inOuterTransaction, oldFiles);
+			return count;
+		} finally {
+			exit(uid);
+		}
 	}
 	
 	@Override
 	public int delete(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
-		enforcePermission(PERMISSION_WRITE);
-		
-		selection = appendUriSelection(selection);
-		selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
-		
-		return db.delete(mTableName, selection, selectionArgs);
+		int uid = enter(PERMISSION_WRITE);
+		try {
+			selection = appendUriSelection(selection);
+			selectionArgs = appendUriSelectionArgs(uri, selectionArgs);
+			
+			if (getExternalColumns() == null)
+				return db.delete(mTableName, selection, selectionArgs);
+			boolean inOuterTransaction = db.inTransaction();
+			List<String> oldFiles;
+			int count;
+			db.beginTransaction();
+			try {
+				oldFiles = queryExternalFiles(db, null, selection, selectionArgs);
+				count = db.delete(mTableName, selection, selectionArgs);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			deleteExternalFilesAfterCommit(inOuterTransaction, oldFiles);
+			return count;
+		} finally {
+			exit(uid);
+		}
 	}
 	
-	private String appendUriSelection(String selection) {
+	String appendUriSelection(String selection) {
 		if (TextUtils.isEmpty(selection))
 			return mUriSelection;
 		else if (TextUtils.isEmpty(mUriSelection))
@@ -198,7 +869,7 @@ public class BaseUriOps extends EasyContentProvider.UriOps implements
 	        return "(" + selection + ") AND (" + mUriSelection + ")";
 	}
 	
-	private String[] appendUriSelectionArgs(Uri uri, String[] selectionArgs) {
+	String[] appendUriSelectionArgs(Uri uri, String[] selectionArgs) {
 		if (mUriSelection != null && mUriWildcardPosition != null) {
 			// concat selectionArgs and uriSelectionArgs
 			String[] uriSelectionArgs = new String[mUriWildcardPosition.size()];
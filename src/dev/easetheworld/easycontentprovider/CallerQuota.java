@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Admission control for other apps, used by BaseUriOps.setCallerQuota().
+ * Each calling uid has its own token bucket and its own limit of concurrent calls,
+ * so one busy app cannot starve the binder threads of the others.
+ * The same quota can be shared by many BaseUriOps.
+ */
+public class CallerQuota {
+	
+	private final double mCallsPerNano;
+	private final int mBurst;
+	private int mMaxConcurrentCalls = Integer.MAX_VALUE;
+	private long mMaxWaitMillis = 0;
+	
+	private static final long IDLE_NANOS = 60 * 1000000000L; // idle uids are removed after this
+	
+	private final HashMap<Integer, Caller> mCallers = new HashMap<Integer, Caller>();
+	private long mAdmittedCount;
+	private long mThrottledCount;
+	private long mSweepTime = System.nanoTime();
+	
+	private static class Caller {
+		private double mTokens;
+		private long mRefillTime;
+		private int mRunning;
+		private long mAdmittedCount;
+		private long mThrottledCount;
+	}
+	
+	/**
+	 * @param callsPerSecond long-term rate allowed to each uid.
+	 * @param burst calls allowed at once after idle.
+	 */
+	public CallerQuota(double callsPerSecond, int burst) {
+		if (callsPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("Invalid quota");
+		mCallsPerNano = callsPerSecond / 1000000000d;
+		mBurst = burst;
+	}
+	
+	/**
+	 * @param maxConcurrentCalls calls of the same uid that can run at the same time.
+	 * @return this object to allow for chaining
+	 */
+	public CallerQuota setMaxConcurrentCalls(int maxConcurrentCalls) {
+		mMaxConcurrentCalls = maxConcurrentCalls;
+		return this;
+	}
+	
+	/**
+	 * Over-quota call waits up to this time for its turn and is rejected after that.
+	 * Default is 0 which means rejected immediately.
+	 * 
+	 * @param maxWaitMillis
+	 * @return this object to allow for chaining
+	 */
+	public CallerQuota setMaxWaitMillis(long maxWaitMillis) {
+		mMaxWaitMillis = maxWaitMillis;
+		return this;
+	}
+	
+	/**
+	 * Take a token and a concurrent slot for the uid. release() must be called after the call.
+	 * 
+	 * @param uid calling uid
+	 * @throws IllegalStateException if the uid is over quota.
+	 */
+	synchronized void acquire(int uid) {
+		removeIdleCallers();
+		Caller caller = mCallers.get(uid);
+		if (caller == null) {
+			caller = new Caller();
+			caller.mTokens = mBurst;
+			caller.mRefillTime = System.nanoTime();
+			mCallers.put(uid, caller);
+		}
+		
+		long deadline = System.nanoTime() + mMaxWaitMillis * 1000000;
+		while (true) {
+			long now = System.nanoTime();
+			caller.mTokens = Math.min(mBurst, caller.mTokens + (now - caller.mRefillTime) * mCallsPerNano);
+			caller.mRefillTime = now;
+			if (caller.mTokens >= 1 && caller.mRunning < mMaxConcurrentCalls)
+				break;
+			
+			long waitNanos = deadline - now;
+			if (waitNanos <= 0) {
+				caller.mThrottledCount++;
+				mThrottledCount++;
+				throw new IllegalStateException("Too many calls from uid " + uid);
+			}
+			if (caller.mTokens < 1) // wake up when the next token is ready
+				waitNanos = Math.min(waitNanos, (long)((1 - caller.mTokens) / mCallsPerNano) + 1);
+			try {
+				wait(waitNanos / 1000000, (int)(waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				caller.mThrottledCount++;
+				mThrottledCount++;
+				throw new IllegalStateException("Interrupted while waiting for quota");
+			}
+		}
+		caller.mTokens -= 1;
+		caller.mRunning++;
+		caller.mAdmittedCount++;
+		mAdmittedCount++;
+	}
+	
+	synchronized void release(int uid) {
+		Caller caller = mCallers.get(uid);
+		caller.mRunning--;
+		notifyAll();
+	}
+	
+	// a uid without running call and with the full bucket is same as a new one. remove it once in a while.
+	private void removeIdleCallers() {
+		long now = System.nanoTime();
+		if (now - mSweepTime < IDLE_NANOS) return;
+		mSweepTime = now;
+		Iterator<Caller> it = mCallers.values().iterator();
+		while (it.hasNext()) {
+			Caller caller = it.next();
+			if (caller.mRunning == 0 && now - caller.mRefillTime >= IDLE_NANOS
+					&& caller.mTokens + (now - caller.mRefillTime) * mCallsPerNano >= mBurst)
+				it.remove();
+		}
+	}
+	
+	public synchronized long getAdmittedCount() {
+		return mAdmittedCount;
+	}
+	
+	public synchronized long getThrottledCount() {
+		return mThrottledCount;
+	}
+	
+	/**
+	 * The counts of a uid start again from 0 after the uid is idle for a minute.
+	 * 
+	 * @param uid
+	 * @return admitted calls of the uid.
+	 */
+	public synchronized long getAdmittedCount(int uid) {
+		Caller caller = mCallers.get(uid);
+		return caller == null ? 0 : caller.mAdmittedCount;
+	}
+	
+	public synchronized long getThrottledCount(int uid) {
+		Caller caller = mCallers.get(uid);
+		return caller == null ? 0 : caller.mThrottledCount;
+	}
+}
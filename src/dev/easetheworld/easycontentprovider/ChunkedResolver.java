@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Client side helper for large bulkInsert() and applyBatch().
+ * One binder transaction cannot be larger than the binder buffer(1MB shared by all transactions of the process),
+ * otherwise TransactionTooLargeException. This splits the values into the largest chunks under the limit
+ * by measuring the parcel size, and sends a chunk while the next chunk is measured.
+ * 
+ * Each chunk is a separate call, so applyBatch() is not atomic as a whole.
+ * Back references(withValueBackReference, withSelectionBackReference) are indexes in the whole batch,
+ * so the operations which have them must be in the first chunk. Otherwise applyBatch() throws
+ * OperationApplicationException before any chunk is sent.
+ * The chunks of all ChunkedResolvers are sent by one shared pool of threads.
+ */
+public class ChunkedResolver {
+	
+	private static final String TAG = "ChunkedResolver";
+	
+	public static final int DEFAULT_MAX_CHUNK_BYTES = 256 * 1024;
+	
+	private static ExecutorService sSender;
+	
+	// a call waits for its previous chunk before sending the next, so each call uses one thread at a time.
+	private static synchronized ExecutorService getSender() {
+		if (sSender == null) {
+			sSender = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "ChunkedResolver #" + mCount.incrementAndGet());
+				}
+			});
+		}
+		return sSender;
+	}
+	
+	private final ContentResolver mResolver;
+	private int mMaxChunkBytes = DEFAULT_MAX_CHUNK_BYTES;
+	
+	public ChunkedResolver(ContentResolver resolver) {
+		mResolver = resolver;
+	}
+	
+	/**
+	 * @param maxChunkBytes parcel size of one call. default is 256KB.
+	 * @return this object to allow for chaining
+	 */
+	public ChunkedResolver setMaxChunkBytes(int maxChunkBytes) {
+		mMaxChunkBytes = maxChunkBytes;
+		return this;
+	}
+	
+	/**
+	 * @param p
+	 * @return the size of p in parcel.
+	 */
+	public static int sizeOf(Parcelable p) {
+		Parcel parcel = Parcel.obtain();
+		try {
+			p.writeToParcel(parcel, 0);
+			return parcel.dataSize();
+		} finally {
+			parcel.recycle();
+		}
+	}
+	
+	// end index of the chunk starting at from. at least one item even if it is too large.
+	private int nextChunkEnd(Parcelable[] items, int from) {
+		int bytes = 0;
+		int to = from;
+		while (to < items.length) {
+			bytes += sizeOf(items[to]);
+			if (bytes > mMaxChunkBytes && to > from)
+				break;
+			to++;
+		}
+		return to;
+	}
+	
+	/**
+	 * Same as ContentResolver.bulkInsert() but in chunks.
+	 * 
+	 * @param uri
+	 * @param values
+	 * @return the number of inserted rows.
+	 */
+	public int bulkInsert(final Uri uri, ContentValues[] values) {
+		ExecutorService sender = getSender();
+		try {
+			int result = 0;
+			Future<Integer> pending = null;
+			for (int from = 0; from < values.length; ) {
+				int to = nextChunkEnd(values, from);
+				final ContentValues[] chunk = Arrays.copyOfRange(values, from, to);
+				if (pending != null)
+					result += get(pending);
+				pending = sender.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return mResolver.bulkInsert(uri, chunk);
+					}
+				});
+				from = to;
+			}
+			if (pending != null)
+				result += get(pending);
+			return result;
+		} catch (RemoteException e) {
+			throw new IllegalStateException(e.toString()); // bulkInsert doesn't throw RemoteException
+		} catch (OperationApplicationException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+	
+	/**
+	 * Same as ContentResolver.applyBatch() but in chunks.
+	 * If a chunk fails, the previous chunks are already applied.
+	 * 
+	 * @param authority
+	 * @param operations
+	 * @return the results of all operations.
+	 * @throws RemoteException
+	 * @throws OperationApplicationException also if an operation after the first chunk has a back reference.
+	 */
+	public ContentProviderResult[] applyBatch(final String authority, ArrayList<ContentProviderOperation> operations)
+			throws RemoteException, OperationApplicationException {
+		ContentProviderOperation[] items = operations.toArray(new ContentProviderOperation[operations.size()]);
+		List<ContentProviderResult> results = new ArrayList<ContentProviderResult>(items.length);
+		ExecutorService sender = getSender();
+		int lastBackReference = -1;
+		for (int i=0; i<items.length; i++) {
+			if (hasBackReference(items[i]))
+				lastBackReference = i;
+		}
+		Future<ContentProviderResult[]> pending = null;
+		for (int from = 0; from < items.length; ) {
+			int to = nextChunkEnd(items, from);
+			if (from == 0 && lastBackReference >= to) // the first chunk is measured before anything is sent
+				throw new OperationApplicationException("Back reference of operation " + lastBackReference +
+						" would be resolved in a later chunk. The first chunk ends at " + to);
+			final ArrayList<ContentProviderOperation> chunk = new ArrayList<ContentProviderOperation>(Arrays.asList(items).subList(from, to));
+			if (pending != null)
+				results.addAll(Arrays.asList(get(pending)));
+			pending = sender.submit(new Callable<ContentProviderResult[]>() {
+				@Override
+				public ContentProviderResult[] call() throws Exception {
+					return mResolver.applyBatch(authority, chunk);
+				}
+			});
+			from = to;
+		}
+		if (pending != null)
+			results.addAll(Arrays.asList(get(pending)));
+		return results.toArray(new ContentProviderResult[results.size()]);
+	}
+	
+	private static Field sValuesBackReferences;
+	private static Field sSelectionArgsBackReferences;
+	private static boolean sBackReferenceFieldsLoaded;
+	
+	// ContentProviderOperation has no getter of the back references, so read its fields.
+	private static synchronized boolean hasBackReference(ContentProviderOperation operation) {
+		if (!sBackReferenceFieldsLoaded) {
+			sBackReferenceFieldsLoaded = true;
+			try {
+				sValuesBackReferences = ContentProviderOperation.class.getDeclaredField("mValuesBackReferences");
+				sValuesBackReferences.setAccessible(true);
+				sSelectionArgsBackReferences = ContentProviderOperation.class.getDeclaredField("mSelectionArgsBackReferences");
+				sSelectionArgsBackReferences.setAccessible(true);
+			} catch (NoSuchFieldException e) {
+				Log.w(TAG, "Back references cannot be checked", e);
+				sValuesBackReferences = null;
+				sSelectionArgsBackReferences = null;
+			}
+		}
+		if (sValuesBackReferences == null) return false;
+		try {
+			ContentValues values = (ContentValues)sValuesBackReferences.get(operation);
+			Map<?, ?> selectionArgs = (Map<?, ?>)sSelectionArgsBackReferences.get(operation);
+			return (values != null && values.size() > 0) || (selectionArgs != null && !selectionArgs.isEmpty());
+		} catch (IllegalAccessException e) {
+			return false;
+		}
+	}
+	
+	// wait for the chunk and throw its exception as it is
+	private static <T> T get(Future<T> future) throws RemoteException, OperationApplicationException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true; // keep waiting. the chunk is already sent.
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RemoteException)
+				throw (RemoteException)cause;
+			if (cause instanceof OperationApplicationException)
+				throw (OperationApplicationException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IllegalStateException(cause.toString());
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs database maintenance(ANALYZE, PRAGMA optimize, incremental vacuum, WAL checkpoint)
+ * when the provider is idle. Return this in EasyContentProvider.onCreateDatabaseMaintenance().
+ * 
+ * Write volume is tracked for each table, and only the databases and the tables which are modified are maintained.
+ * UriOps.onIdle() of the uris in the modified databases is also called here. (ex. eviction of BaseUriOps)
+ * Each task runs in a short slice on a background thread and stops as soon as the provider is used again.
+ * ANALYZE runs one index per slice, incremental vacuum frees setVacuumPagesPerSlice() pages per slice
+ * and WAL checkpoint is PASSIVE, which doesn't wait for the readers and the writers.
+ * PRAGMA optimize cannot be split, so it runs with analysis_limit(SQLite 3.32+) and is skipped while other thread uses the connection.
+ * The thread quits when there is nothing to do and starts again with the next write,
+ * or with a query of BaseUriOps with time to live, which has expired rows to delete.
+ */
+public class DatabaseMaintenance {
+	
+	private static final String TAG = "DatabaseMaintenance";
+	private static final int OPTIMIZE_ANALYSIS_LIMIT = 400; // rows of each index read by PRAGMA optimize
+	
+	public static final String TASK_ANALYZE = "analyze";
+	public static final String TASK_OPTIMIZE = "optimize";
+	public static final String TASK_INCREMENTAL_VACUUM = "incremental_vacuum";
+	public static final String TASK_WAL_CHECKPOINT = "wal_checkpoint";
+	public static final String TASK_IDLE = "idle"; // UriOps.onIdle()
+	
+	/**
+	 * Called on the maintenance thread after each task.
+	 */
+	public static interface OnMaintenanceListener {
+		/**
+		 * @param databaseName null is the default database.
+		 * @param task one of TASK_XXX.
+		 * @param table the table for TASK_ANALYZE, the uri path for TASK_IDLE, otherwise null.
+		 * @param elapsedMillis
+		 * @param reclaimedBytes
+		 */
+		void onMaintenance(String databaseName, String task, String table, long elapsedMillis, long reclaimedBytes);
+	}
+	
+	private long mIdleMillis = 30 * 1000;
+	private long mAnalyzeThreshold = 1000;
+	private int mVacuumPagesPerSlice = 64;
+	private OnMaintenanceListener mListener;
+	
+	private EasyContentProvider mProvider;
+	private HandlerThread mThread; // guarded by mWrites
+	private Handler mHandler; // guarded by mWrites
+	private boolean mStopped; // guarded by mWrites
+	private volatile long mLastAccessTime;
+	private boolean mScheduled;
+	
+	// database name - (table name - written rows). null table means unknown table.
+	private final HashMap<String, HashMap<String, Long>> mWrites = new HashMap<String, HashMap<String, Long>>();
+	private final ArrayDeque<Task> mTasks = new ArrayDeque<Task>(); // used only in maintenance thread
+	
+	/**
+	 * @param idleMillis maintenance starts after the provider is not used for this time. default is 30 seconds.
+	 * @return this object to allow for chaining
+	 */
+	public DatabaseMaintenance setIdleMillis(long idleMillis) {
+		mIdleMillis = idleMillis;
+		return this;
+	}
+	
+	/**
+	 * @param rows ANALYZE a table after this many rows are written to it. default is 1000.
+	 * @return this object to allow for chaining
+	 */
+	public DatabaseMaintenance setAnalyzeThreshold(long rows) {
+		mAnalyzeThreshold = rows;
+		return this;
+	}
+	
+	/**
+	 * Incremental vacuum works only if "PRAGMA auto_vacuum=INCREMENTAL" is set before the tables are created.
+	 * 
+	 * @param pages pages to free in one slice. default is 64.
+	 * @return this object to allow for chaining
+	 */
+	public DatabaseMaintenance setVacuumPagesPerSlice(int pages) {
+		mVacuumPagesPerSlice = pages;
+		return this;
+	}
+	
+	/**
+	 * @param listener to report the time and the reclaimed space of each task.
+	 * @return this object to allow for chaining
+	 */
+	public DatabaseMaintenance setOnMaintenanceListener(OnMaintenanceListener listener) {
+		mListener = listener;
+		return this;
+	}
+	
+	void start(EasyContentProvider provider) {
+		mProvider = provider;
+	}
+	
+	// quit the thread. no maintenance after this.
+	void stop() {
+		synchronized (mWrites) {
+			mStopped = true;
+			mWrites.clear();
+			if (mThread != null) {
+				mHandler.removeCallbacks(mRunSlice);
+				mThread.quit();
+				mThread = null;
+				mHandler = null;
+			}
+		}
+	}
+	
+	void onAccess() {
+		mLastAccessTime = SystemClock.uptimeMillis();
+	}
+	
+	void onWrite(String databaseName, String table, int rows) {
+		mLastAccessTime = SystemClock.uptimeMillis();
+		synchronized (mWrites) {
+			HashMap<String, Long> tables = mWrites.get(databaseName);
+			if (tables == null) {
+				tables = new HashMap<String, Long>();
+				mWrites.put(databaseName, tables);
+			}
+			Long written = tables.get(table);
+			tables.put(table, (written == null ? 0 : written) + rows);
+			
+			if (!mScheduled && !mStopped) {
+				mScheduled = true;
+				if (mThread == null) {
+					mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+					mThread.start();
+					mHandler = new Handler(mThread.getLooper());
+				}
+				mHandler.postDelayed(mRunSlice, mIdleMillis);
+			}
+		}
+	}
+	
+	private final Runnable mRunSlice = new Runnable() {
+		@Override
+		public void run() {
+			long idle = SystemClock.uptimeMillis() - mLastAccessTime;
+			if (idle < mIdleMillis) { // used again. wait until idle.
+				synchronized (mWrites) {
+					if (mHandler != null)
+						mHandler.postDelayed(this, mIdleMillis - idle);
+				}
+				return;
+			}
+			
+			if (mTasks.isEmpty())
+				takeTasks();
+			Task task = mTasks.peek();
+			if (task != null) {
+				try {
+					SQLiteDatabase db = mProvider.getDatabase(task.mDatabaseName, true);
+					if (db == null || db.isReadOnly() || task.runSlice(db))
+						mTasks.poll();
+				} catch (SQLException e) { // maintenance is not worth crashing. skip the task.
+					Log.w(TAG, "Skip " + task.mName + " " + task.mTable + " of " + task.mDatabaseName, e);
+					mTasks.poll();
+				}
+			}
+			
+			synchronized (mWrites) {
+				if (mStopped) {
+					mTasks.clear();
+				} else if (mTasks.isEmpty() && mWrites.isEmpty()) { // nothing to do. quit the thread.
+					mScheduled = false;
+					mThread.quit();
+					mThread = null;
+					mHandler = null;
+				} else {
+					mHandler.post(this); // yield to the other messages between slices
+				}
+			}
+		}
+	};
+	
+	private void takeTasks() {
+		synchronized (mWrites) {
+			for (Map.Entry<String, HashMap<String, Long>> entry : mWrites.entrySet()) {
+				String databaseName = entry.getKey();
+				for (Map.Entry<String, Long> table : entry.getValue().entrySet()) {
+					if (table.getKey() != null && table.getValue() >= mAnalyzeThreshold)
+						mTasks.add(new AnalyzeTask(databaseName, table.getKey()));
+				}
+				for (EasyContentProvider.UriOps ops : mProvider.getAllUriOps()) {
+					if (equals(ops.getDatabaseName(), databaseName))
+						mTasks.add(new IdleTask(databaseName, ops));
+				}
+				mTasks.add(new OptimizeTask(databaseName));
+				mTasks.add(new IncrementalVacuumTask(databaseName));
+				mTasks.add(new WalCheckpointTask(databaseName));
+			}
+			mWrites.clear();
+		}
+	}
+	
+	private abstract class Task {
+		final String mDatabaseName;
+		final String mName;
+		final String mTable;
+		private long mElapsedMillis;
+		private long mReclaimedBytes;
+		
+		Task(String databaseName, String name, String table) {
+			mDatabaseName = databaseName;
+			mName = name;
+			mTable = table;
+		}
+		
+		// returns true when the task is finished
+		boolean runSlice(SQLiteDatabase db) {
+			long start = SystemClock.uptimeMillis();
+			boolean finished = run(db);
+			mElapsedMillis += SystemClock.uptimeMillis() - start;
+			if (finished && mListener != null)
+				mListener.onMaintenance(mDatabaseName, mName, mTable, mElapsedMillis, mReclaimedBytes);
+			return finished;
+		}
+		
+		void addReclaimedBytes(long bytes) {
+			mReclaimedBytes += bytes;
+		}
+		
+		abstract boolean run(SQLiteDatabase db);
+	}
+	
+	// ANALYZE one index per slice. the table can be "databaseName.table" of an attached database.
+	private class AnalyzeTask extends Task {
+		private List<String> mTargets;
+		
+		AnalyzeTask(String databaseName, String table) {
+			super(databaseName, TASK_ANALYZE, table);
+		}
+		
+		@Override
+		boolean run(SQLiteDatabase db) {
+			if (mTargets == null) {
+				mTargets = getTargets(db);
+				return mTargets.isEmpty();
+			}
+			db.execSQL("ANALYZE " + mTargets.remove(0));
+			return mTargets.isEmpty();
+		}
+		
+		private List<String> getTargets(SQLiteDatabase db) {
+			List<String> targets = new ArrayList<String>();
+			String name = mTable.replace("\"", "");
+			int dot = name.indexOf('.');
+			String schema = dot < 0 ? "main" : name.substring(0, dot);
+			String table = name.substring(dot + 1);
+			String prefix = EasyContentProvider.quoteIdentifier(schema) + ".";
+			Cursor c;
+			try {
+				c = db.rawQuery("SELECT type, name FROM " + prefix + "sqlite_master WHERE tbl_name=? AND type IN ('table','index')",
+						new String[] { table });
+			} catch (SQLException e) { // unknown database
+				return targets;
+			}
+			try {
+				boolean isTable = false;
+				while (c.moveToNext()) {
+					if ("table".equals(c.getString(0)))
+						isTable = true;
+					else
+						targets.add(prefix + EasyContentProvider.quoteIdentifier(c.getString(1)));
+				}
+				if (!isTable) { // sql select or view. nothing to analyze.
+					targets.clear();
+				} else if (targets.isEmpty()) {
+					targets.add(prefix + EasyContentProvider.quoteIdentifier(table));
+				}
+			} finally {
+				c.close();
+			}
+			return targets;
+		}
+	}
+	
+	private class IdleTask extends Task {
+		private final EasyContentProvider.UriOps mUriOps;
+		
+		IdleTask(String databaseName, EasyContentProvider.UriOps ops) {
+			super(databaseName, TASK_IDLE, ops.getUriPath());
+			mUriOps = ops;
+		}
+		
+		@Override
+		boolean run(SQLiteDatabase db) {
+			return !mUriOps.onIdle(db);
+		}
+	}
+	
+	private class OptimizeTask extends Task {
+		OptimizeTask(String databaseName) {
+			super(databaseName, TASK_OPTIMIZE, null);
+		}
+		
+		@Override
+		boolean run(SQLiteDatabase db) {
+			if (db.isDbLockedByOtherThreads()) // cannot yield in the middle. skip until the next maintenance.
+				return true;
+			pragma(db, "PRAGMA analysis_limit=" + OPTIMIZE_ANALYSIS_LIMIT); // ignored by SQLite older than 3.32
+			pragma(db, "PRAGMA optimize"); // ignored by SQLite older than 3.18
+			return true;
+		}
+	}
+	
+	private class IncrementalVacuumTask extends Task {
+		IncrementalVacuumTask(String databaseName) {
+			super(databaseName, TASK_INCREMENTAL_VACUUM, null);
+		}
+		
+		@Override
+		boolean run(SQLiteDatabase db) {
+			if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) // not INCREMENTAL
+				return true;
+			long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+			long before = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			pragma(db, "PRAGMA incremental_vacuum(" + mVacuumPagesPerSlice + ")");
+			long after = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			addReclaimedBytes((before - after) * pageSize);
+			return after == 0 || after >= before;
+		}
+	}
+	
+	private class WalCheckpointTask extends Task {
+		WalCheckpointTask(String databaseName) {
+			super(databaseName, TASK_WAL_CHECKPOINT, null);
+		}
+		
+		@Override
+		boolean run(SQLiteDatabase db) {
+			File wal = new File(db.getPath() + "-wal");
+			if (!wal.exists()) // not in WAL mode
+				return true;
+			long before = wal.length();
+			boolean done = false;
+			Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null); // busy, frames in wal, checkpointed frames
+			try {
+				done = c.moveToFirst() && c.getLong(1) == c.getLong(2);
+			} finally {
+				c.close();
+			}
+			// every frame is in the database. truncating the wal now only waits for the readers.
+			if (done && !db.isDbLockedByOtherThreads())
+				pragma(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+			addReclaimedBytes(before - wal.length());
+			return true;
+		}
+	}
+	
+	private static boolean equals(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+	
+	// run pragma which may return rows
+	private static void pragma(SQLiteDatabase db, String sql) {
+		Cursor c = db.rawQuery(sql, null);
+		try {
+			while (c.moveToNext());
+		} finally {
+			c.close();
+		}
+	}
+}
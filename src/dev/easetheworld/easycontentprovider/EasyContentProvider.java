@@ -18,8 +18,16 @@
 
 package dev.easetheworld.easycontentprovider;
 
+import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
@@ -33,12 +41,21 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 
 public abstract class EasyContentProvider extends ContentProvider {
 	
 	private Uri mAuthorityUri;
-	private SQLiteOpenHelper mDbHelper;
+	private LinkedHashMap<String, SQLiteOpenHelper> mDbHelpers; // key is database name. null is the default database.
+	private HashMap<String, List<String>> mAttachedDatabaseNames;
+	private final Set<SQLiteDatabase> mPreparedDatabases = new HashSet<SQLiteDatabase>();
+	private final Map<String, BackfillHistory.Runner> mBackfillRunners = new HashMap<String, BackfillHistory.Runner>(); // guarded by mPreparedDatabases
 	private UriOpsMatcher mUriOpsMatcher;
+	private HashMap<String, List<Uri>> mObserverUris; // "databaseName.table" - uris which read the table
+	private DatabaseMaintenance mMaintenance;
+	private volatile TraceRecorder mTraceRecorder;
+	private volatile boolean mPayloadAccounting;
 	
 	/**
 	 * This will be called only once in onCreate().
@@ -85,7 +102,48 @@ public abstract class EasyContentProvider extends ContentProvider {
 		DatabaseHistory[] history = onCreateDatabaseHistory();
 		return new DatabaseHistoryBuilder(context, getClass().getSimpleName()+".db", history);
 	}
-
+	
+	/**
+	 * Same as onCreateDatabaseHistory() but for the database which is set by UriOps.setDatabaseName().
+	 * Override this if any of your UriOps uses its own database.
+	 * 
+	 * This will be called only once for each database name in onCreateSQLiteOpenHelper(Context, String).
+	 * 
+	 * @param databaseName the name given to UriOps.setDatabaseName()
+	 * @return The array of the DatabaseHistory.
+	 */
+	protected DatabaseHistory[] onCreateDatabaseHistory(String databaseName) {
+		throw new IllegalStateException("No database history for " + databaseName);
+	}
+	
+	/**
+	 * Same as onCreateSQLiteOpenHelper(Context) but for the database which is set by UriOps.setDatabaseName().
+	 * Database file name will be "ProviderName.databaseName.db".
+	 * For a prebuilt read-only database in assets, return AssetDatabaseHelper.
+	 * 
+	 * This will be called only once for each database name in onCreate().
+	 * 
+	 * @param context
+	 * @param databaseName the name given to UriOps.setDatabaseName()
+	 * @return
+	 */
+	protected SQLiteOpenHelper onCreateSQLiteOpenHelper(Context context, String databaseName) {
+		DatabaseHistory[] history = onCreateDatabaseHistory(databaseName);
+		return new DatabaseHistoryBuilder(context, getClass().getSimpleName()+"."+databaseName+".db", history);
+	}
+	
+	/**
+	 * If you want to run database maintenance(ANALYZE, vacuum, etc) when this provider is idle,
+	 * return DatabaseMaintenance. Default is null which means no maintenance.
+	 * 
+	 * This will be called only once in onCreate().
+	 * 
+	 * @return
+	 */
+	protected DatabaseMaintenance onCreateDatabaseMaintenance() {
+		return null;
+	}
+	
 	@Override
 	public boolean onCreate() {
 		// check authority
@@ -94,13 +152,194 @@ public abstract class EasyContentProvider extends ContentProvider {
 			throw new IllegalStateException("Authority cannot be null");
 		mAuthorityUri = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority).build();
 		
-		// create db
-		mDbHelper = onCreateSQLiteOpenHelper(getContext());
+		// create uris
+		UriOps[] uriOps = addAggregateUriOps(onCreateUriOps());
+		mUriOpsMatcher = new UriOpsMatcher(authority, uriOps);
+		for (UriOps ops : uriOps)
+			ops.mProvider = this;
 		
-		// create uris
-		mUriOpsMatcher = new UriOpsMatcher(authority, onCreateUriOps());
+		// create db. default db first, then the others in the order of uris.
+		mDbHelpers = new LinkedHashMap<String, SQLiteOpenHelper>();
+		mAttachedDatabaseNames = new HashMap<String, List<String>>();
+		mDbHelpers.put(null, onCreateSQLiteOpenHelper(getContext()));
+		for (UriOps ops : uriOps) {
+			String name = ops.getDatabaseName();
+			if (!mDbHelpers.containsKey(name))
+				mDbHelpers.put(name, onCreateSQLiteOpenHelper(getContext(), name));
+			if (ops.mAttachedDatabaseNames != null) {
+				List<String> attached = mAttachedDatabaseNames.get(name);
+				if (attached == null) {
+					attached = new ArrayList<String>();
+					mAttachedDatabaseNames.put(name, attached);
+				}
+				for (String attachedName : ops.mAttachedDatabaseNames) {
+					if (!attached.contains(attachedName))
+						attached.add(attachedName);
+				}
+			}
+		}
+		for (List<String> attached : mAttachedDatabaseNames.values()) {
+			for (String attachedName : attached) {
+				if (attachedName == null || !mDbHelpers.containsKey(attachedName))
+					throw new IllegalStateException("Unknown database to attach : " + attachedName);
+			}
+		}
+		
+		// uris to be notified when the tables are modified by other uris
+		mObserverUris = new HashMap<String, List<Uri>>();
+		for (UriOps ops : uriOps) {
+			String[] tables = ops.getObservedTables();
+			if (tables == null) continue;
+			Uri observerUri = Uri.withAppendedPath(mAuthorityUri, ops.getUriPathPrefix());
+			for (String table : tables) {
+				String key = qualifyTable(ops.getDatabaseName(), table);
+				List<Uri> uris = mObserverUris.get(key);
+				if (uris == null) {
+					uris = new ArrayList<Uri>();
+					mObserverUris.put(key, uris);
+				}
+				if (!uris.contains(observerUri))
+					uris.add(observerUri);
+			}
+		}
+		
+		mMaintenance = onCreateDatabaseMaintenance();
+		if (mMaintenance != null)
+			mMaintenance.start(this);
 		return true;
 	}
+	
+	// aggregate uris come first so that "xxx/_count" is not matched to "xxx/*".
+	private static UriOps[] addAggregateUriOps(UriOps[] uriOps) {
+		List<UriOps> all = new ArrayList<UriOps>();
+		for (UriOps ops : uriOps) {
+			if (ops instanceof BaseUriOps && ((BaseUriOps)ops).hasAggregateRoutes()) {
+				for (UriOps other : uriOps) {
+					if (isChildWildcard(other.getUriPath(), ops.getUriPath()))
+						throw new IllegalStateException("Aggregate routes of " + ops.getUriPath() +
+								" would hide the rows named _count or _aggregate from " + other.getUriPath());
+				}
+				all.add(new AggregateUriOps((BaseUriOps)ops, true));
+				all.add(new AggregateUriOps((BaseUriOps)ops, false));
+			}
+		}
+		if (all.isEmpty())
+			return uriOps;
+		all.addAll(Arrays.asList(uriOps));
+		return all.toArray(new UriOps[all.size()]);
+	}
+	
+	// true if path matches "parent/anything". ex. "xxx/*" or "*/*" for "xxx".
+	private static boolean isChildWildcard(String path, String parent) {
+		String[] segments = path.split("/");
+		String[] parentSegments = parent.split("/");
+		if (segments.length != parentSegments.length + 1 || !"*".equals(segments[segments.length - 1]))
+			return false;
+		for (int i=0; i<parentSegments.length; i++) {
+			if (!"*".equals(segments[i]) && !segments[i].equals(parentSegments[i]))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param databaseName the name given to UriOps.setDatabaseName(). null means the default database.
+	 * @return SQLiteOpenHelper of the database, or null if there is no such database.
+	 */
+	protected SQLiteOpenHelper getSQLiteOpenHelper(String databaseName) {
+		return mDbHelpers.get(databaseName);
+	}
+	
+	/**
+	 * @param ops
+	 * @return readable database which the given UriOps is bound to.
+	 */
+	protected SQLiteDatabase getReadableDatabase(UriOps ops) {
+		if (mMaintenance != null)
+			mMaintenance.onAccess();
+		return getDatabase(ops.getDatabaseName(), false);
+	}
+	
+	/**
+	 * @param ops
+	 * @return writable database which the given UriOps is bound to.
+	 */
+	protected SQLiteDatabase getWritableDatabase(UriOps ops) {
+		if (mMaintenance != null)
+			mMaintenance.onAccess();
+		return getDatabase(ops.getDatabaseName(), true);
+	}
+	
+	SQLiteDatabase getDatabase(String databaseName, boolean writable) {
+		SQLiteOpenHelper helper = mDbHelpers.get(databaseName);
+		SQLiteDatabase db = writable ? helper.getWritableDatabase() : helper.getReadableDatabase();
+		if (db != null)
+			prepareDatabase(databaseName, db);
+		return db;
+	}
+	
+	// attach databases and prepare UriOps at the first use of each connection.
+	// if anything fails, the attached databases are detached and the next use tries again.
+	private void prepareDatabase(String databaseName, SQLiteDatabase db) {
+		synchronized (mPreparedDatabases) {
+			if (mPreparedDatabases.contains(db)) return;
+			List<String> attached = mAttachedDatabaseNames.get(databaseName);
+			List<String> done = new ArrayList<String>();
+			try {
+				if (attached != null) {
+					for (String attachedName : attached) {
+						// don't use getDatabase() here so that two databases can attach each other.
+						String path = mDbHelpers.get(attachedName).getReadableDatabase().getPath();
+						db.execSQL("ATTACH DATABASE ? AS " + quoteIdentifier(attachedName), new Object[] { path });
+						done.add(attachedName);
+					}
+				}
+				for (UriOps ops : getAllUriOps()) {
+					if (TextUtils.equals(ops.getDatabaseName(), databaseName))
+						ops.onPrepareDatabase(db);
+				}
+			} catch (RuntimeException e) {
+				for (String attachedName : done) {
+					try {
+						db.execSQL("DETACH DATABASE " + quoteIdentifier(attachedName));
+					} catch (RuntimeException ignored) {
+					}
+				}
+				throw e;
+			}
+			mPreparedDatabases.add(db);
+			
+			// read the fallback of the pending backfills and resume them
+			Map<String, Map<String, String>> backfills = BackfillHistory.getPendingColumns(db);
+			for (UriOps ops : getAllUriOps()) {
+				if (ops instanceof BaseUriOps && TextUtils.equals(ops.getDatabaseName(), databaseName))
+					((BaseUriOps)ops).setBackfillColumns(backfills.get(((BaseUriOps)ops).getTableName()));
+			}
+			if (!backfills.isEmpty() && !db.isReadOnly() && !mBackfillRunners.containsKey(databaseName)) {
+				BackfillHistory.Runner runner = new BackfillHistory.Runner(this, databaseName, db);
+				mBackfillRunners.put(databaseName, runner);
+				runner.start();
+			}
+		}
+	}
+	
+	// BackfillHistory.Runner calls this when a backfill is done.
+	void onBackfillDone(String databaseName, String table, String column) {
+		synchronized (mPreparedDatabases) {
+			for (UriOps ops : getAllUriOps()) {
+				if (ops instanceof BaseUriOps && TextUtils.equals(ops.getDatabaseName(), databaseName)
+						&& table.equals(((BaseUriOps)ops).getTableName()))
+					((BaseUriOps)ops).removeBackfillColumn(column);
+			}
+		}
+	}
+	
+	void onBackfillStopped(String databaseName) {
+		synchronized (mPreparedDatabases) {
+			if (mBackfillRunners.get(databaseName) == Thread.currentThread())
+				mBackfillRunners.remove(databaseName);
+		}
+	}
 	
 	/**
 	 * This is like UriMatcher.match(uri) but this returns UriOps
@@ -111,6 +350,40 @@ public abstract class EasyContentProvider extends ContentProvider {
 	protected UriOps getUriOps(Uri uri) {
 		return mUriOpsMatcher.match(uri);
 	}
+	
+	UriOps[] getAllUriOps() {
+		return mUriOpsMatcher.mUriOpsArray;
+	}
+	
+	/**
+	 * Record every query/insert/bulkInsert/update/delete/applyBatch to replay later with TraceReplayer.
+	 * 
+	 * @param recorder null stops recording. The previous recorder is not closed.
+	 */
+	public void setTraceRecorder(TraceRecorder recorder) {
+		mTraceRecorder = recorder;
+	}
+	
+	/**
+	 * Count the parcel size of the values of insert/bulkInsert/update for each UriOps.
+	 * This costs one more marshalling of the values, so default is false.
+	 * 
+	 * @param enabled
+	 * @see UriOps#getPayloadBytes()
+	 */
+	public void setPayloadAccounting(boolean enabled) {
+		mPayloadAccounting = enabled;
+	}
+	
+	private void countPayload(UriOps ops, ContentValues... values) {
+		if (!mPayloadAccounting || values == null) return;
+		long bytes = 0;
+		for (ContentValues v : values) {
+			if (v != null)
+				bytes += ChunkedResolver.sizeOf(v);
+		}
+		ops.addPayload(bytes);
+	}
 	
 	/**
 	 * Inner class for uri-UriOps match
@@ -175,6 +448,109 @@ public abstract class EasyContentProvider extends ContentProvider {
 		protected final String getUriPath() {
 			return mUriPath;
 		}
+		
+		// uri path before the first wild card. ex) "cheeses" for "cheeses/#"
+		private String getUriPathPrefix() {
+			if (mUriWildcardPosition == null)
+				return mUriPath;
+			String[] segments = mUriPath.split("/");
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i<mUriWildcardPosition.get(0); i++) {
+				if (i > 0)
+					sb.append("/");
+				sb.append(segments[i]);
+			}
+			return sb.toString();
+		}
+		
+		private EasyContentProvider mProvider;
+		
+		/**
+		 * @return the provider which has this operations. null before the provider is created.
+		 */
+		protected final EasyContentProvider getProvider() {
+			return mProvider;
+		}
+		
+		/**
+		 * Notify the uri of this operations(without wild cards) and the uris which read the same table.
+		 * This is for the changes made outside of query/insert/update/delete, for example in onIdle().
+		 */
+		protected void notifyChange() {
+			mProvider.notifyChange(this, Uri.withAppendedPath(mProvider.mAuthorityUri, getUriPathPrefix()));
+		}
+		
+		/**
+		 * Called in the maintenance thread when the provider is idle. (see DatabaseMaintenance)
+		 * Do a small piece of work and return true if there is more,
+		 * so that the work can stop when the provider is used again.
+		 * 
+		 * @param db the database of this operations.
+		 * @return true if there is more work.
+		 */
+		protected boolean onIdle(SQLiteDatabase db) {
+			return false;
+		}
+		
+		/**
+		 * Called in EasyContentProvider.shutdown() before the databases are closed.
+		 * Release what this operations keeps, for example compiled statements.
+		 */
+		protected void onShutdown() {
+		}
+		
+		/**
+		 * Called once for each connection of the database of this operations before its first use.
+		 * Create what this operations needs in the database, for example triggers.
+		 * 
+		 * @param db
+		 */
+		protected void onPrepareDatabase(SQLiteDatabase db) {
+		}
+		
+		private final AtomicLong mPayloadCalls = new AtomicLong();
+		private final AtomicLong mPayloadBytes = new AtomicLong();
+		private final AtomicLong mMaxPayloadBytes = new AtomicLong();
+		
+		private void addPayload(long bytes) {
+			mPayloadCalls.incrementAndGet();
+			mPayloadBytes.addAndGet(bytes);
+			long max;
+			do {
+				max = mMaxPayloadBytes.get();
+			} while (bytes > max && !mMaxPayloadBytes.compareAndSet(max, bytes));
+		}
+		
+		/**
+		 * @return the number of calls counted by EasyContentProvider.setPayloadAccounting().
+		 */
+		public long getPayloadCalls() {
+			return mPayloadCalls.get();
+		}
+		
+		/**
+		 * @return total parcel size of the values counted by EasyContentProvider.setPayloadAccounting().
+		 */
+		public long getPayloadBytes() {
+			return mPayloadBytes.get();
+		}
+		
+		/**
+		 * @return the largest parcel size of the values in one call.
+		 */
+		public long getMaxPayloadBytes() {
+			return mMaxPayloadBytes.get();
+		}
+		
+		/**
+		 * If this operations reads the tables modified through other uris(ex. join),
+		 * return the tables so that this uri is notified when they are modified.
+		 * 
+		 * @return null if this uri is notified only by itself.
+		 */
+		protected String[] getObservedTables() {
+			return null;
+		}
 		
 		private String mType;
 		
@@ -190,6 +566,40 @@ public abstract class EasyContentProvider extends ContentProvider {
 		public String getType() {
 			return mType;
 		}
+		
+		private String mDatabaseName;
+		private String[] mAttachedDatabaseNames;
+		
+		/**
+		 * Bind this operations to its own database file.
+		 * Each database has its own history and its own write lock,
+		 * so writes to this uri don't wait for writes to the uris of the other databases.
+		 * 
+		 * @param databaseName null means the default database.
+		 * @return this object to allow for chaining
+		 */
+		public UriOps setDatabaseName(String databaseName) {
+			mDatabaseName = databaseName;
+			return this;
+		}
+		
+		public String getDatabaseName() {
+			return mDatabaseName;
+		}
+		
+		/**
+		 * Attach other databases to the database of this operations.
+		 * Then the tables of the attached database can be read as "databaseName.tableName",
+		 * for example in the table name of BaseUriOps.
+		 * Attached databases are shared by all uris of the same database.
+		 * 
+		 * @param databaseNames the names given to setDatabaseName() of other uris.
+		 * @return this object to allow for chaining
+		 */
+		public UriOps attachDatabases(String... databaseNames) {
+			mAttachedDatabaseNames = databaseNames;
+			return this;
+		}
 		
 		// if path is "cheeses", type is "vnd.android.cursor.dir/authority.cheeses"
 		// if path is "cheeses/#", type is "vnd.android.cursor.item/authority.cheeses"
@@ -222,16 +632,21 @@ public abstract class EasyContentProvider extends ContentProvider {
 	 */
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-		SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		long start = System.nanoTime();
+		UriOps ops = getUriOps(uri);
+		SQLiteDatabase db = getReadableDatabase(ops);
 		if (db == null) return null;
 		
-		UriOps ops = getUriOps(uri);
 		Cursor result = null;
 		if (ops instanceof OpQuery)
 			result = ((OpQuery)ops).query(db, uri, projection, selection, selectionArgs, sortOrder);
 		
 		if (result != null)
 			result.setNotificationUri(getContext().getContentResolver(), uri);
+		
+		TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null)
+			recorder.recordQuery(start, uri, projection, selection, selectionArgs, sortOrder);
 		return result;
 	}
 
@@ -241,16 +656,24 @@ public abstract class EasyContentProvider extends ContentProvider {
 	 */
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
-		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		long start = System.nanoTime();
+		UriOps ops = getUriOps(uri);
+		countPayload(ops, values);
+		SQLiteDatabase db = getWritableDatabase(ops);
 		if (db == null) return null;
 		
-		UriOps ops = getUriOps(uri);
 		Uri result = null;
 		if (ops instanceof OpInsert)
 			result = ((OpInsert)ops).insert(db, uri, values);
 		
-		if (result != null)
-			notifyChange(result);
+		if (result != null) {
+			recordWrite(ops, 1);
+			notifyChange(ops, result);
+		}
+		
+		TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null)
+			recorder.recordInsert(start, uri, values);
 		return result;
 	}
 
@@ -260,16 +683,24 @@ public abstract class EasyContentProvider extends ContentProvider {
 	 */
 	@Override
 	public int bulkInsert(Uri uri, ContentValues[] values) {
-		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		long start = System.nanoTime();
+		UriOps ops = getUriOps(uri);
+		countPayload(ops, values);
+		SQLiteDatabase db = getWritableDatabase(ops);
 		if (db == null) return 0;
 		
-		UriOps ops = getUriOps(uri);
 		int result = 0;
 		if (ops instanceof OpInsert)
 			result = ((OpInsert)ops).bulkInsert(db, uri, values);
 		
-		if (result > 0)
-			notifyChange(uri);
+		if (result > 0) {
+			recordWrite(ops, result);
+			notifyChange(ops, uri);
+		}
+		
+		TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null)
+			recorder.recordBulkInsert(start, uri, values);
 		return result;
 	}
 
@@ -279,16 +710,24 @@ public abstract class EasyContentProvider extends ContentProvider {
 	 */
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		long start = System.nanoTime();
+		UriOps ops = getUriOps(uri);
+		countPayload(ops, values);
+		SQLiteDatabase db = getWritableDatabase(ops);
 		if (db == null) return 0;
 		
-		UriOps ops = getUriOps(uri);
 		int result = 0;
 		if (ops instanceof OpUpdate)
 			result = ((OpUpdate)ops).update(db, uri, values, selection, selectionArgs);
 		
-		if (result > 0)
-			notifyChange(uri);
+		if (result > 0) {
+			recordWrite(ops, result);
+			notifyChange(ops, uri);
+		}
+		
+		TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null)
+			recorder.recordUpdate(start, uri, values, selection, selectionArgs);
 		return result;
 	}
 	
@@ -298,46 +737,171 @@ public abstract class EasyContentProvider extends ContentProvider {
 	 */
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		long start = System.nanoTime();
+		UriOps ops = getUriOps(uri);
+		SQLiteDatabase db = getWritableDatabase(ops);
 		if (db == null) return 0;
 		
-		UriOps ops = getUriOps(uri);
 		int result = 0;
 		if (ops instanceof OpDelete)
 			result = ((OpDelete)ops).delete(db, uri, selection, selectionArgs);
 		
-		if (result > 0)
-			notifyChange(uri);
+		if (result > 0) {
+			recordWrite(ops, result);
+			notifyChange(ops, uri);
+		}
+		
+		TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null)
+			recorder.recordDelete(start, uri, selection, selectionArgs);
 		return result;
 	}
 	
+	/**
+	 * In-process bulk insert without ContentValues.
+	 * If the UriOps matched with given uri implements OpBindInsert, this will call OpBindInsert.bulkInsert()
+	 * This will call notify database change only once.
+	 * 
+	 * This is not a binder call. Other apps use bulkInsert(Uri, ContentValues[]).
+	 * In your app, get this provider by ContentResolver.acquireContentProviderClient(uri).getLocalContentProvider().
+	 * This is not recorded by TraceRecorder because there are no values to record.
+	 * 
+	 * A row which fails to insert(ex. constraint) is skipped and logged, and is not counted in the result.
+	 * BaseUriOps throws IllegalStateException if the columns have its external column. (see BaseUriOps.setExternalColumn())
+	 * 
+	 * @param uri
+	 * @param columns columns bound by the binder in this order.
+	 * @param binder
+	 * @return the number of inserted rows.
+	 */
+	public int bulkInsert(Uri uri, String[] columns, RowBinder binder) {
+		UriOps ops = getUriOps(uri);
+		SQLiteDatabase db = getWritableDatabase(ops);
+		if (db == null) return 0;
+		
+		int result = 0;
+		if (ops instanceof OpBindInsert)
+			result = ((OpBindInsert)ops).bulkInsert(db, uri, columns, binder);
+		
+		if (result > 0) {
+			recordWrite(ops, result);
+			notifyChange(ops, uri);
+		}
+		return result;
+	}
+	
+	/**
+	 * Release the compiled statements of UriOps, stop the maintenance and the backfills, and close the databases.
+	 * The framework never calls this. ContentProvider.shutdown() of Honeycomb is only for tests,
+	 * so call it yourself when you are done with a provider instance, for example in a test.
+	 */
+	public void shutdown() {
+		for (UriOps ops : getAllUriOps())
+			ops.onShutdown();
+		if (mMaintenance != null)
+			mMaintenance.stop();
+		List<BackfillHistory.Runner> runners;
+		synchronized (mPreparedDatabases) {
+			runners = new ArrayList<BackfillHistory.Runner>(mBackfillRunners.values());
+			mBackfillRunners.clear();
+		}
+		// stop the backfills before closing their databases. they resume at the next start.
+		for (BackfillHistory.Runner runner : runners) {
+			runner.interrupt();
+			try {
+				runner.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (mPreparedDatabases) {
+			for (SQLiteOpenHelper helper : mDbHelpers.values())
+				helper.close();
+			mPreparedDatabases.clear();
+		}
+	}
+	
+	/**
+	 * If the UriOps matched with given uri implements OpOpenFile, this will call OpOpenFile.openFile()
+	 */
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		UriOps ops = getUriOps(uri);
+		if (ops instanceof OpOpenFile)
+			return ((OpOpenFile)ops).openFile(uri, mode);
+		return super.openFile(uri, mode);
+	}
+	
 	@Override
 	public String getType(Uri uri) {
 		return getUriOps(uri).getType();
 	}
 	
 	private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+	private final ThreadLocal<List<Runnable>> mAfterBatch = new ThreadLocal<List<Runnable>>();
+	
+	// run the action after the batch of this thread is committed. false if this thread is not in applyBatch.
+	boolean runAfterBatch(Runnable action) {
+		List<Runnable> actions = mAfterBatch.get();
+		if (actions == null) return false;
+		actions.add(action);
+		return true;
+	}
 	
 	/**
 	 * This will call notify database change only once to increase performance.
+	 * If the operations use several databases, all of them are in transaction.
+	 * 
+	 * Note that the transactions of the databases are committed one by one,
+	 * so the batch over several databases is not atomic. If the process dies between the commits,
+	 * some databases have the changes and the others don't.
+	 * For an atomic batch, use UriOps.attachDatabases() and write the tables of the attached databases
+	 * through the uris of one database.
 	 */
 	@Override
 	public ContentProviderResult[] applyBatch(
 			ArrayList<ContentProviderOperation> operations)
 			throws OperationApplicationException {
-		SQLiteDatabase db = mDbHelper.getWritableDatabase();
-		if (db == null) return null;
+		long start = System.nanoTime();
+		
+		// find the databases used in this batch
+		Set<String> databaseNames = new HashSet<String>();
+		for (ContentProviderOperation operation : operations)
+			databaseNames.add(getUriOps(operation.getUri()).getDatabaseName());
+		
+		// begin transaction in the fixed order to avoid deadlock with other batches
+		List<SQLiteDatabase> dbs = new ArrayList<SQLiteDatabase>();
+		for (String name : mDbHelpers.keySet()) {
+			if (!databaseNames.contains(name)) continue;
+			SQLiteDatabase db = getDatabase(name, true);
+			if (db == null) return null;
+			dbs.add(db);
+		}
 		
-		ContentProviderResult[] result;
-		db.beginTransaction();
+		TraceRecorder recorder = mTraceRecorder;
+		ContentProviderResult[] result = null;
+		List<Runnable> afterBatch = new ArrayList<Runnable>();
+		int began = 0;
 		try {
+			if (recorder != null)
+				recorder.beginBatch(); // operations are recorded in the batch
+			for (; began<dbs.size(); began++)
+				dbs.get(began).beginTransaction();
 			mApplyingBatch.set(true); // insert, delete, update shouldn't notify
+			mAfterBatch.set(afterBatch);
 			result = super.applyBatch(operations);
-			db.setTransactionSuccessful();
+			for (SQLiteDatabase db : dbs)
+				db.setTransactionSuccessful();
 		} finally {
 			mApplyingBatch.set(false);
-			db.endTransaction();
+			mAfterBatch.set(null);
+			for (int i=began-1; i>=0; i--)
+				dbs.get(i).endTransaction();
+			if (recorder != null)
+				recorder.endBatch(start, result != null);
 		}
+		for (Runnable action : afterBatch)
+			action.run(); // committed
 		
 		notifyChange(mAuthorityUri);
 		return result;
@@ -350,6 +914,41 @@ public abstract class EasyContentProvider extends ContentProvider {
 		getContext().getContentResolver().notifyChange(uri, null);
 		return true;
 	}
+	
+	// "databaseName.table" so that the table of an attached database is the same as in its own database.
+	// the default database is "main".
+	static String qualifyTable(String databaseName, String table) {
+		table = table.replace("\"", "");
+		if (table.indexOf('.') >= 0)
+			return table;
+		return (databaseName == null ? "main" : databaseName) + "." + table;
+	}
+	
+	// "name" for sql. the name can have any character.
+	static String quoteIdentifier(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+	
+	// count the written rows of each table for the maintenance
+	void recordWrite(UriOps ops, int rows) {
+		if (mMaintenance == null) return;
+		String table = (ops instanceof BaseUriOps) ? ((BaseUriOps)ops).getTableName() : null;
+		mMaintenance.onWrite(ops.getDatabaseName(), table, rows);
+	}
+	
+	// notify the uri and the uris which read the table of the uri
+	private boolean notifyChange(UriOps ops, Uri uri) {
+		if (!notifyChange(uri)) return false;
+		
+		if (ops instanceof BaseUriOps) {
+			List<Uri> observerUris = mObserverUris.get(qualifyTable(ops.getDatabaseName(), ((BaseUriOps)ops).getTableName()));
+			if (observerUris != null) {
+				for (Uri observerUri : observerUris)
+					notifyChange(observerUri);
+			}
+		}
+		return true;
+	}
 
 	/**
 	 * If your database need to be modified and increase version,
@@ -394,6 +993,10 @@ public abstract class EasyContentProvider extends ContentProvider {
 		int bulkInsert(SQLiteDatabase db, Uri uri, ContentValues[] values);
 	}
 	
+	public static interface OpBindInsert {
+		int bulkInsert(SQLiteDatabase db, Uri uri, String[] columns, RowBinder binder);
+	}
+	
 	public static interface OpUpdate {
 		int update(SQLiteDatabase db, Uri uri, ContentValues values, String selection, String[] selectionArgs);
 	}
@@ -401,4 +1004,8 @@ public abstract class EasyContentProvider extends ContentProvider {
 	public static interface OpDelete {
 		int delete(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs);
 	}
+	
+	public static interface OpOpenFile {
+		ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Open the file of the value moved by BaseUriOps.setExternalColumn().
+ * 
+ * <pre>
+ * new BaseUriOps("cheese/#").setUriSelection("_id=?").setExternalColumn("memo", "memo_file", 4096)
+ * new ExternalFileUriOps("cheese/#/memo", cheeseIdOps, "memo_file")
+ * 
+ * // client
+ * InputStream in = resolver.openInputStream(Uri.parse("content://authority/cheese/1/memo"));
+ * </pre>
+ * 
+ * The row is selected by the query of the target with this uri, so the uri path must have the wildcards
+ * at the same positions as the target and the permission of the target is applied.
+ * The file is read-only.
+ */
+public class ExternalFileUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpOpenFile {
+	
+	private final BaseUriOps mTarget;
+	private final String mFileColumn;
+	
+	/**
+	 * @param uriPath uri(excluding authority) that matched to this operations.
+	 * @param target operations which has the external column.
+	 * @param fileColumn fileColumn of setExternalColumn().
+	 */
+	public ExternalFileUriOps(String uriPath, BaseUriOps target, String fileColumn) {
+		super(uriPath);
+		mTarget = target;
+		mFileColumn = fileColumn;
+	}
+	
+	/**
+	 * Always the database of the target.
+	 */
+	@Override
+	public String getDatabaseName() {
+		return mTarget.getDatabaseName();
+	}
+	
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if (!"r".equals(mode))
+			throw new FileNotFoundException("External file is read-only : " + uri);
+		SQLiteDatabase db = getProvider().getReadableDatabase(this);
+		String name = null;
+		Cursor c = mTarget.query(db, uri, new String[] { mFileColumn }, null, null, null);
+		try {
+			if (!c.moveToFirst())
+				throw new FileNotFoundException("No row : " + uri);
+			name = c.getString(0);
+		} finally {
+			c.close();
+		}
+		if (name == null)
+			throw new FileNotFoundException("Not externalized : " + uri);
+		File file;
+		try {
+			file = mTarget.getExternalFile(name);
+		} catch (IllegalArgumentException e) {
+			throw new FileNotFoundException(e.getMessage());
+		}
+		return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+}
@@ -0,0 +1,692 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Import CSV or JSON lines into the table of BaseUriOps without loading the whole data in memory.
+ * 
+ * <pre>
+ * new ImportUriOps("import/*", cheeseOps)
+ * 
+ * // client. the last segment is the name of the import.
+ * ParcelFileDescriptor pfd = resolver.openFileDescriptor(Uri.parse("content://authority/import/cheese.csv?format=csv"), "w");
+ * OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+ * // write the data and close
+ * </pre>
+ * 
+ * CSV(RFC 4180) must have the header line of column names. Empty unquoted value is null.
+ * Each JSON line is an object and the keys of the first line are the columns. Other keys are ignored.
+ * 
+ * One task parses the data and another task inserts the rows in chunks of setChunkRows() rows,
+ * one transaction for each chunk. Between them at most setQueueChunks() chunks wait, so the memory is bounded.
+ * The tasks of all imports run on one shared pool of background threads.
+ * The progress(committed rows, inserted rows, rows per second, state) is kept in "_easy_import" table with each chunk
+ * and query() on the same uri returns it. The uri is notified after each chunk.
+ * Rows which are not inserted(ex. constraint violation) are committed but not counted as inserted.
+ * The rows are bound to the insert statement without ContentValues, except when the columns have an external column
+ * of the BaseUriOps(setExternalColumn()). Then they are inserted as ContentValues so that the large values are moved to files.
+ * 
+ * If the import fails(parse error, process killed, etc), open the same uri again and write the same data from the beginning.
+ * The committed rows are skipped. The byte length and CRC32 of the committed part are saved with the progress,
+ * and the import fails without inserting if the data written again doesn't start with the same bytes.
+ * After the import is done, the same name starts a new import.
+ * The write permission of the BaseUriOps is checked when the file is opened.
+ */
+public class ImportUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpOpenFile,
+	EasyContentProvider.OpQuery {
+	
+	private static final String TAG = "ImportUriOps";
+	
+	public static final String PARAM_FORMAT = "format";
+	public static final String FORMAT_CSV = "csv";
+	public static final String FORMAT_JSON_LINES = "jsonl";
+	
+	public static final String TABLE_NAME = "_easy_import";
+	public static final String COLUMN_ID = "_id";
+	public static final String COLUMN_NAME = "name";
+	public static final String COLUMN_TABLE = "target";
+	public static final String COLUMN_ROWS = "rows"; // committed rows of the data
+	public static final String COLUMN_INSERTED_ROWS = "inserted_rows";
+	public static final String COLUMN_BYTES = "bytes"; // length of the committed part of the data
+	public static final String COLUMN_CHECKSUM = "checksum"; // CRC32 of the committed part of the data
+	public static final String COLUMN_ROWS_PER_SECOND = "rows_per_second"; // inserted rows
+	public static final String COLUMN_STATE = "state";
+	public static final String COLUMN_ERROR = "error";
+	public static final String COLUMN_UPDATED = "updated";
+	
+	public static final String STATE_RUNNING = "running";
+	public static final String STATE_DONE = "done";
+	public static final String STATE_FAILED = "failed";
+	
+	private final BaseUriOps mTarget;
+	private int mChunkRows = 500;
+	private int mQueueChunks = 4;
+	private final Set<String> mRunningImports = new HashSet<String>();
+	
+	private static Executor sExecutor;
+	
+	// parser and inserter of an import wait for each other, so the threads are not bounded. idle threads end soon.
+	private static synchronized Executor getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "ImportUriOps #" + mCount.incrementAndGet());
+				}
+			});
+		}
+		return sExecutor;
+	}
+	
+	/**
+	 * @param uriPath uri(excluding authority) that matched to this operations. The first wild card is the name of the import.
+	 * @param target the rows are inserted by target.bulkInsert() into the database of the target.
+	 */
+	public ImportUriOps(String uriPath, BaseUriOps target) {
+		super(uriPath);
+		mTarget = target;
+	}
+	
+	/**
+	 * @param chunkRows rows in one transaction. default is 500.
+	 * @return this object to allow for chaining
+	 */
+	public ImportUriOps setChunkRows(int chunkRows) {
+		mChunkRows = chunkRows;
+		return this;
+	}
+	
+	/**
+	 * @param queueChunks parsed chunks which wait for insert. default is 4.
+	 * @return this object to allow for chaining
+	 */
+	public ImportUriOps setQueueChunks(int queueChunks) {
+		mQueueChunks = queueChunks;
+		return this;
+	}
+	
+	/**
+	 * Always the database of the target.
+	 */
+	@Override
+	public String getDatabaseName() {
+		return mTarget.getDatabaseName();
+	}
+	
+	@Override
+	protected void onPrepareDatabase(SQLiteDatabase db) {
+		if (db.isReadOnly()) return;
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+				COLUMN_ID + " INTEGER PRIMARY KEY," +
+				COLUMN_NAME + " TEXT UNIQUE NOT NULL," +
+				COLUMN_TABLE + " TEXT," +
+				COLUMN_ROWS + " INTEGER NOT NULL DEFAULT 0," +
+				COLUMN_INSERTED_ROWS + " INTEGER NOT NULL DEFAULT 0," +
+				COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0," +
+				COLUMN_CHECKSUM + " INTEGER NOT NULL DEFAULT 0," +
+				COLUMN_ROWS_PER_SECOND + " REAL," +
+				COLUMN_STATE + " TEXT," +
+				COLUMN_ERROR + " TEXT," +
+				COLUMN_UPDATED + " INTEGER)");
+	}
+	
+	private String getImportName(Uri uri) {
+		if (mUriWildcardPosition == null)
+			return getUriPath();
+		return uri.getPathSegments().get(mUriWildcardPosition.get(0));
+	}
+	
+	/**
+	 * @return progress of the import.
+	 */
+	@Override
+	public Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		int uid = mTarget.enter(BaseUriOps.PERMISSION_READ);
+		try {
+			SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+			qb.setTables(TABLE_NAME);
+			qb.appendWhere(COLUMN_NAME + "=");
+			qb.appendWhereEscapeString(getImportName(uri));
+			return BaseUriOps.execute(qb.query(db, projection, selection, selectionArgs, null, null, sortOrder), uid);
+		} finally {
+			mTarget.exit(uid);
+		}
+	}
+	
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if (!mode.startsWith("w"))
+			throw new FileNotFoundException("Import is write-only : " + uri);
+		String format = uri.getQueryParameter(PARAM_FORMAT);
+		if (format == null)
+			format = FORMAT_CSV;
+		if (!FORMAT_CSV.equals(format) && !FORMAT_JSON_LINES.equals(format))
+			throw new FileNotFoundException("Unknown format : " + format);
+		mTarget.exit(mTarget.enter(BaseUriOps.PERMISSION_WRITE));
+		
+		String name = getImportName(uri);
+		synchronized (mRunningImports) {
+			if (!mRunningImports.add(name))
+				throw new FileNotFoundException("Import is running : " + name);
+		}
+		try {
+			SQLiteDatabase db = getProvider().getWritableDatabase(this);
+			Chunk committed = startImport(db, name);
+			ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+			new Import(uri, name, format, committed, new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])).start(db);
+			return pipe[1];
+		} catch (IOException e) {
+			synchronized (mRunningImports) {
+				mRunningImports.remove(name);
+			}
+			throw new FileNotFoundException(e.toString());
+		}
+	}
+	
+	// returns the committed part to skip. resume the import which is not done.
+	private Chunk startImport(SQLiteDatabase db, String name) {
+		Chunk committed = new Chunk(0);
+		Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_ROWS, COLUMN_INSERTED_ROWS, COLUMN_BYTES, COLUMN_CHECKSUM, COLUMN_STATE },
+				COLUMN_NAME + "=?", new String[] { name }, null, null, null);
+		try {
+			if (c.moveToFirst() && !STATE_DONE.equals(c.getString(4))) {
+				committed.mEndRow = c.getLong(0);
+				committed.mInsertedRows = c.getLong(1);
+				committed.mEndOffset = c.getLong(2);
+				committed.mChecksum = c.getLong(3);
+			}
+		} finally {
+			c.close();
+		}
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_NAME, name);
+		values.put(COLUMN_TABLE, mTarget.getTableName());
+		values.put(COLUMN_ROWS, committed.mEndRow);
+		values.put(COLUMN_INSERTED_ROWS, committed.mInsertedRows);
+		values.put(COLUMN_BYTES, committed.mEndOffset);
+		values.put(COLUMN_CHECKSUM, committed.mChecksum);
+		values.putNull(COLUMN_ROWS_PER_SECOND);
+		values.put(COLUMN_STATE, STATE_RUNNING);
+		values.putNull(COLUMN_ERROR);
+		values.put(COLUMN_UPDATED, System.currentTimeMillis());
+		db.replace(TABLE_NAME, null, values);
+		return committed;
+	}
+	
+	// rows and where they end in the data.
+	private static class Chunk {
+		final List<Object[]> mRows;
+		long mEndRow; // rows of the data until the end of this chunk
+		long mEndOffset; // bytes of the data until the end of this chunk
+		long mChecksum; // CRC32 of the bytes until the end of this chunk
+		long mInsertedRows; // only for the progress
+		
+		Chunk(int capacity) {
+			mRows = new ArrayList<Object[]>(capacity);
+		}
+		
+		void add(Object[] row, PositionInputStream in) {
+			mRows.add(row);
+			mEndRow++;
+			mEndOffset = in.getPosition();
+			mChecksum = in.getChecksum();
+		}
+		
+		Chunk next(int capacity) {
+			Chunk chunk = new Chunk(capacity);
+			chunk.mEndRow = mEndRow;
+			return chunk;
+		}
+	}
+	
+	// one import. parser task -> queue -> inserter task
+	private class Import {
+		private final Uri mUri;
+		private final String mName;
+		private final String mFormat;
+		private final Chunk mSkipped; // committed before
+		private final InputStream mIn;
+		private final BlockingQueue<Chunk> mQueue = new ArrayBlockingQueue<Chunk>(mQueueChunks);
+		private final Chunk mEnd = new Chunk(0);
+		private volatile String[] mColumns;
+		private volatile Exception mParseError;
+		private volatile boolean mInsertFailed;
+		
+		Import(Uri uri, String name, String format, Chunk skipped, InputStream in) {
+			mUri = uri;
+			mName = name;
+			mFormat = format;
+			mSkipped = skipped;
+			mIn = in;
+		}
+		
+		void start(final SQLiteDatabase db) {
+			Executor executor = getExecutor();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					parse();
+				}
+			});
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					insert(db);
+				}
+			});
+		}
+		
+		private void parse() {
+			try {
+				PositionInputStream in = new PositionInputStream(mIn);
+				RowReader reader = FORMAT_CSV.equals(mFormat) ? new CsvRowReader(in) : new JsonLinesRowReader(in);
+				mColumns = reader.getColumns();
+				skipCommitted(reader, in);
+				Chunk chunk = mSkipped.next(mChunkRows);
+				Object[] values;
+				while (!mInsertFailed && (values = reader.readRow()) != null) {
+					chunk.add(values, in);
+					if (chunk.mRows.size() >= mChunkRows) {
+						mQueue.put(chunk);
+						chunk = chunk.next(mChunkRows);
+					}
+				}
+				if (!chunk.mRows.isEmpty())
+					mQueue.put(chunk);
+			} catch (Exception e) {
+				mParseError = e;
+			} finally {
+				try {
+					mIn.close(); // the writer gets EPIPE if it is still writing.
+				} catch (IOException e) {
+				}
+				putEnd();
+			}
+		}
+		
+		// the committed rows must come again with the same bytes.
+		private void skipCommitted(RowReader reader, PositionInputStream in) throws IOException, JSONException {
+			if (mSkipped.mEndRow == 0) return;
+			long row = 0;
+			while (row < mSkipped.mEndRow && reader.readRow() != null)
+				row++;
+			if (row < mSkipped.mEndRow || in.getPosition() != mSkipped.mEndOffset || in.getChecksum() != mSkipped.mChecksum)
+				throw new IOException("Data is different from the committed " + mSkipped.mEndRow + " rows of " + mName);
+		}
+		
+		private void putEnd() {
+			while (true) {
+				try {
+					mQueue.put(mEnd);
+					return;
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		
+		private void insert(SQLiteDatabase db) {
+			Chunk committed = mSkipped;
+			long importedRows = 0; // inserted by this import
+			long startTime = System.currentTimeMillis();
+			String error = null;
+			try {
+				Chunk chunk;
+				while ((chunk = mQueue.take()) != mEnd) {
+					if (mInsertFailed) continue; // drain until the parser stops
+					try {
+						int inserted;
+						db.beginTransaction();
+						try {
+							if (mTarget.hasExternalColumn(mColumns)) // RowBinder cannot move the values to files
+								inserted = mTarget.bulkInsert(db, mUri, toValues(mColumns, chunk.mRows));
+							else
+								inserted = mTarget.bulkInsert(db, mUri, mColumns, new ChunkBinder(chunk.mRows));
+							chunk.mInsertedRows = committed.mInsertedRows + inserted;
+							updateProgress(db, chunk, importedRows + inserted, startTime, STATE_RUNNING, null);
+							db.setTransactionSuccessful();
+						} finally {
+							db.endTransaction();
+						}
+						committed = chunk;
+						importedRows += inserted;
+						getProvider().recordWrite(mTarget, inserted);
+						mTarget.notifyChange();
+						getProvider().notifyChange(mUri);
+					} catch (RuntimeException e) {
+						mInsertFailed = true;
+						error = e.toString();
+					}
+				}
+				if (error == null && mParseError != null)
+					error = mParseError.toString();
+			} catch (InterruptedException e) {
+				error = e.toString();
+			} finally {
+				try {
+					updateProgress(db, committed, importedRows, startTime, error == null ? STATE_DONE : STATE_FAILED, error);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Cannot save the progress of " + mName, e);
+				}
+				synchronized (mRunningImports) {
+					mRunningImports.remove(mName);
+				}
+				getProvider().notifyChange(mUri);
+			}
+		}
+		
+		private void updateProgress(SQLiteDatabase db, Chunk committed, long importedRows, long startTime, String state, String error) {
+			long now = System.currentTimeMillis();
+			ContentValues values = new ContentValues();
+			values.put(COLUMN_ROWS, committed.mEndRow);
+			values.put(COLUMN_INSERTED_ROWS, committed.mInsertedRows);
+			values.put(COLUMN_BYTES, committed.mEndOffset);
+			values.put(COLUMN_CHECKSUM, committed.mChecksum);
+			values.put(COLUMN_ROWS_PER_SECOND, importedRows * 1000.0 / Math.max(1, now - startTime));
+			values.put(COLUMN_STATE, state);
+			values.put(COLUMN_ERROR, error);
+			values.put(COLUMN_UPDATED, now);
+			db.update(TABLE_NAME, values, COLUMN_NAME + "=?", new String[] { mName });
+		}
+	}
+	
+	private static class ChunkBinder implements RowBinder {
+		private final List<Object[]> mRows;
+		private int mIndex;
+		
+		ChunkBinder(List<Object[]> rows) {
+			mRows = rows;
+		}
+		
+		@Override
+		public boolean bindNextRow(SQLiteStatement statement) {
+			if (mIndex == mRows.size()) return false;
+			Object[] row = mRows.get(mIndex++);
+			for (int i=0; i<row.length; i++) {
+				Object value = row[i];
+				int index = i + 1;
+				if (value == null || value == JSONObject.NULL)
+					statement.bindNull(index);
+				else if (value instanceof Boolean)
+					statement.bindLong(index, ((Boolean)value) ? 1 : 0);
+				else if (value instanceof Double || value instanceof Float)
+					statement.bindDouble(index, ((Number)value).doubleValue());
+				else if (value instanceof Number)
+					statement.bindLong(index, ((Number)value).longValue());
+				else
+					statement.bindString(index, value.toString());
+			}
+			return true;
+		}
+	}
+	
+	// same values as ChunkBinder binds
+	private static ContentValues[] toValues(String[] columns, List<Object[]> rows) {
+		ContentValues[] result = new ContentValues[rows.size()];
+		for (int r=0; r<result.length; r++) {
+			Object[] row = rows.get(r);
+			ContentValues values = new ContentValues();
+			for (int i=0; i<row.length; i++) {
+				Object value = row[i];
+				if (value == null || value == JSONObject.NULL)
+					values.putNull(columns[i]);
+				else if (value instanceof Boolean)
+					values.put(columns[i], ((Boolean)value) ? 1L : 0L);
+				else if (value instanceof Double || value instanceof Float)
+					values.put(columns[i], ((Number)value).doubleValue());
+				else if (value instanceof Number)
+					values.put(columns[i], ((Number)value).longValue());
+				else
+					values.put(columns[i], value.toString());
+			}
+			result[r] = values;
+		}
+		return result;
+	}
+	
+	// counts and checksums the bytes read so far. the readers read one byte at a time, so a row ends at a known position.
+	private static class PositionInputStream extends FilterInputStream {
+		private final CRC32 mChecksum = new CRC32();
+		private long mPosition;
+		
+		PositionInputStream(InputStream in) {
+			super(new BufferedInputStream(in));
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				mPosition++;
+				mChecksum.update(b);
+			}
+			return b;
+		}
+		
+		long getPosition() {
+			return mPosition;
+		}
+		
+		long getChecksum() {
+			return mChecksum.getValue();
+		}
+	}
+	
+	private static abstract class RowReader {
+		private String[] mColumns;
+		
+		String[] getColumns() {
+			return mColumns;
+		}
+		
+		// column names go into the insert sql, so only plain identifiers are allowed.
+		void setColumns(String[] columns) {
+			for (String column : columns)
+				AggregateUriOps.checkIdentifier(column);
+			mColumns = columns;
+		}
+		
+		// values in the order of the columns. null at the end.
+		abstract Object[] readRow() throws IOException, JSONException;
+		
+		Object[] fit(Object[] values, long row) throws IOException {
+			if (values.length > mColumns.length)
+				throw new IOException("Too many values at row " + row);
+			if (values.length < mColumns.length) {
+				Object[] fitted = new Object[mColumns.length];
+				System.arraycopy(values, 0, fitted, 0, values.length);
+				return fitted;
+			}
+			return values;
+		}
+	}
+	
+	// RFC 4180. quoted value can have comma, quote("") and line break.
+	// The delimiters are ASCII, so UTF-8 bytes are split before they are decoded.
+	private static class CsvRowReader extends RowReader {
+		private final InputStream mIn;
+		private int mNext = -2; // one byte look-ahead. -2 means not read yet.
+		private long mRow;
+		
+		CsvRowReader(InputStream in) throws IOException {
+			mIn = in;
+			List<String> header = readRecord();
+			if (header == null)
+				throw new IOException("No header");
+			setColumns(header.toArray(new String[header.size()]));
+		}
+		
+		@Override
+		Object[] readRow() throws IOException {
+			List<String> record = readRecord();
+			if (record == null) return null;
+			mRow++;
+			return fit(record.toArray(), mRow);
+		}
+		
+		private int read() throws IOException {
+			if (mNext != -2) {
+				int c = mNext;
+				mNext = -2;
+				return c;
+			}
+			return mIn.read();
+		}
+		
+		private int peek() throws IOException {
+			if (mNext == -2)
+				mNext = mIn.read();
+			return mNext;
+		}
+		
+		// null at the end. blank lines are skipped. a record ends right after its line break,
+		// and '\n' of "\r\n" is skipped by the next record.
+		private List<String> readRecord() throws IOException {
+			int c = read();
+			while (c == '\r' || c == '\n')
+				c = read();
+			if (c == -1) return null;
+			
+			List<String> record = new ArrayList<String>();
+			ByteArrayOutputStream value = new ByteArrayOutputStream();
+			boolean quoted = false;
+			while (true) {
+				if (c == '"' && value.size() == 0 && !quoted) {
+					quoted = true;
+					while (true) {
+						c = read();
+						if (c == -1)
+							throw new IOException("Unclosed quote at row " + (mRow + 1));
+						if (c == '"') {
+							if (peek() != '"') break;
+							read();
+						}
+						value.write(c);
+					}
+				} else if (c == ',' || c == '\r' || c == '\n' || c == -1) {
+					record.add(value.size() == 0 && !quoted ? null : value.toString("UTF-8"));
+					if (c != ',')
+						return record;
+					value.reset();
+					quoted = false;
+				} else {
+					value.write(c);
+				}
+				c = read();
+			}
+		}
+	}
+	
+	// one JSON object in each line.
+	private static class JsonLinesRowReader extends RowReader {
+		private final InputStream mIn;
+		private JSONObject mFirst;
+		private long mRow;
+		
+		JsonLinesRowReader(InputStream in) throws IOException, JSONException {
+			mIn = in;
+			mFirst = readObject();
+			List<String> columns = new ArrayList<String>();
+			if (mFirst != null) {
+				Iterator<?> keys = mFirst.keys();
+				while (keys.hasNext())
+					columns.add((String)keys.next());
+			}
+			setColumns(columns.toArray(new String[columns.size()]));
+		}
+		
+		private JSONObject readObject() throws IOException, JSONException {
+			String line;
+			while ((line = readLine()) != null) {
+				if (line.trim().length() > 0)
+					return new JSONObject(line.trim());
+			}
+			return null;
+		}
+		
+		// until '\n'(included). null at the end.
+		private String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int c;
+			while ((c = mIn.read()) != -1 && c != '\n')
+				line.write(c);
+			if (c == -1 && line.size() == 0) return null;
+			return line.toString("UTF-8");
+		}
+		
+		@Override
+		Object[] readRow() throws IOException, JSONException {
+			JSONObject object = mFirst;
+			if (object != null)
+				mFirst = null;
+			else
+				object = readObject();
+			if (object == null) return null;
+			mRow++;
+			
+			String[] columns = getColumns();
+			Object[] values = new Object[columns.length];
+			for (int i=0; i<columns.length; i++)
+				values[i] = object.opt(columns[i]); // nested object or array is bound as its json string
+			return values;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+
+/**
+ * Read-only operations for the join of tables.
+ * 
+ * <pre>
+ * new JoinUriOps("cheese_origin", "cheese")
+ *     .join("origin", "cheese.origin_id", "origin._id")
+ *     .addColumn("_id", "cheese._id")
+ *     .addColumn("name", "cheese.name")
+ *     .addColumn("country", "origin.country")
+ * </pre>
+ * 
+ * The join is queried as "SELECT * FROM (SELECT cheese._id AS _id, ... FROM cheese JOIN origin ...) WHERE ...",
+ * so projection, selection and sort order use the column names given to addColumn().
+ * SQLite flattens the subquery into the outer query, so the index of each table is still used for the selection.
+ * When any joined table is modified through other uri, this uri is notified too.
+ */
+public class JoinUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpQuery {
+	
+	private static final int MAX_CACHED_QUERIES = 32;
+	
+	private final BaseUriOps mAccess; // permission, quota and uri selection. not registered as a uri.
+	private StringBuilder mTables;
+	private List<String> mTableNames = new ArrayList<String>();
+	private LinkedHashMap<String, String> mColumns = new LinkedHashMap<String, String>(); // name - column of joined table
+	private String mJoin; // the subquery
+	
+	// built sql of each query shape. the same sql reuses the compiled statement of the connection.
+	private final Map<String, String> mQueryCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_CACHED_QUERIES;
+		}
+	};
+	
+	/**
+	 * @param uriPath uri(excluding authority) that matched to this operations.
+	 * @param baseTable the first table of the join.
+	 */
+	public JoinUriOps(String uriPath, String baseTable) {
+		super(uriPath);
+		mAccess = new BaseUriOps(uriPath, baseTable);
+		mTables = new StringBuilder(baseTable);
+		mTableNames.add(baseTable);
+	}
+	
+	/**
+	 * @see BaseUriOps#setUriSelection(String...)
+	 * @return this object to allow for chaining
+	 */
+	public JoinUriOps setUriSelection(String... selection) {
+		mAccess.setUriSelection(selection);
+		return this;
+	}
+	
+	/**
+	 * @see BaseUriOps#setPermission(boolean, boolean)
+	 * @return this object to allow for chaining
+	 */
+	public JoinUriOps setPermission(boolean isReadable) {
+		mAccess.setPermission(isReadable, false);
+		return this;
+	}
+	
+	/**
+	 * @see BaseUriOps#setCallerQuota(CallerQuota)
+	 * @return this object to allow for chaining
+	 */
+	public JoinUriOps setCallerQuota(CallerQuota quota) {
+		mAccess.setCallerQuota(quota);
+		return this;
+	}
+	
+	/**
+	 * Inner join.
+	 * @param table
+	 * @param leftColumn column of the joined tables so far. ex) "cheese.origin_id"
+	 * @param rightColumn column of the table. ex) "origin._id"
+	 * @return this object to allow for chaining
+	 */
+	public JoinUriOps join(String table, String leftColumn, String rightColumn) {
+		return addJoin(" JOIN ", table, leftColumn, rightColumn);
+	}
+	
+	/**
+	 * Left outer join.
+	 * @see #join(String, String, String)
+	 */
+	public JoinUriOps leftJoin(String table, String leftColumn, String rightColumn) {
+		return addJoin(" LEFT JOIN ", table, leftColumn, rightColumn);
+	}
+	
+	private JoinUriOps addJoin(String join, String table, String leftColumn, String rightColumn) {
+		mTables.append(join).append(table).append(" ON ").append(leftColumn).append("=").append(rightColumn);
+		mTableNames.add(table);
+		clearQueryCache();
+		return this;
+	}
+	
+	/**
+	 * @param name column name seen by the client.
+	 * @param column column of a joined table. ex) "origin.country"
+	 * @return this object to allow for chaining
+	 */
+	public JoinUriOps addColumn(String name, String column) {
+		AggregateUriOps.checkIdentifier(name);
+		mColumns.put(name, column);
+		clearQueryCache();
+		return this;
+	}
+	
+	private void clearQueryCache() {
+		synchronized (mQueryCache) {
+			mQueryCache.clear();
+			mJoin = null;
+		}
+	}
+	
+	@Override
+	protected String[] getObservedTables() {
+		return mTableNames.toArray(new String[mTableNames.size()]);
+	}
+	
+	@Override
+	public Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		int uid = mAccess.enter(BaseUriOps.PERMISSION_READ);
+		try {
+			selection = mAccess.appendUriSelection(selection);
+			selectionArgs = mAccess.appendUriSelectionArgs(uri, selectionArgs);
+			
+			String sql = getQuery(projection, selection, sortOrder);
+			return BaseUriOps.execute(db.rawQuery(sql, selectionArgs), uid);
+		} finally {
+			mAccess.exit(uid);
+		}
+	}
+	
+	private String getQuery(String[] projection, String selection, String sortOrder) {
+		StringBuilder key = new StringBuilder();
+		if (projection != null) {
+			for (String column : projection)
+				key.append(column).append(',');
+		}
+		key.append('\0').append(selection).append('\0').append(sortOrder);
+		
+		synchronized (mQueryCache) {
+			String sql = mQueryCache.get(key.toString());
+			if (sql == null) {
+				SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+				qb.setTables("(" + getJoin() + ")");
+				sql = qb.buildQuery(projection, selection, null, null, null, sortOrder, null);
+				mQueryCache.put(key.toString(), sql);
+			}
+			return sql;
+		}
+	}
+	
+	// SELECT the columns AS their names FROM the joined tables
+	private String getJoin() {
+		if (mJoin == null) {
+			if (mColumns.isEmpty())
+				throw new IllegalStateException("No column in the join of " + mTables);
+			StringBuilder sb = new StringBuilder("SELECT ");
+			for (Map.Entry<String, String> column : mColumns.entrySet()) {
+				if (sb.length() > 7)
+					sb.append(',');
+				sb.append(column.getValue()).append(" AS ").append(column.getKey());
+			}
+			mJoin = sb.append(" FROM ").append(mTables).toString();
+		}
+		return mJoin;
+	}
+}
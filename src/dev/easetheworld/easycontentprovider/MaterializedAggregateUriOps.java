@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+/**
+ * Group-by count and sums of a table which are kept in a side table by triggers,
+ * so reading them doesn't scan the table.
+ * 
+ * <pre>
+ * new MaterializedAggregateUriOps("order_by_category", "orders", "category")
+ *     .addSum("total_price", "price")
+ * </pre>
+ * 
+ * The side table(the first segment of uri path) has "_id", the group columns, "_count" and the sums.
+ * The side table, its index and triggers are created and filled by getDatabaseHistory(),
+ * which is appended to the history after the source table is created.
+ * When the declaration is changed, append getDatabaseHistory() again so that they are recreated.
+ * Only COUNT and SUM are supported because MIN/MAX cannot be updated by delete without a scan.
+ * 
+ * This is read-only. rebuild() fills the side table from scratch.
+ * The source table must be in the database of this operations. (see UriOps.setDatabaseName())
+ */
+public class MaterializedAggregateUriOps extends EasyContentProvider.UriOps implements
+	EasyContentProvider.OpQuery {
+	
+	public static final String COLUMN_COUNT = "_count";
+	
+	private final BaseUriOps mAccess; // the side table with permission, quota and uri selection. not registered as a uri.
+	private final String mSourceTable;
+	private final String[] mGroupColumns;
+	private final List<String> mSumNames = new ArrayList<String>();
+	private final List<String> mSumColumns = new ArrayList<String>();
+	
+	/**
+	 * @param uriPath uri(excluding authority) that matched to this operations. The first segment is the side table.
+	 * @param sourceTable the table to aggregate.
+	 * @param groupColumns columns of group by. none means one row for the whole table.
+	 */
+	public MaterializedAggregateUriOps(String uriPath, String sourceTable, String... groupColumns) {
+		super(uriPath);
+		mAccess = new BaseUriOps(uriPath);
+		mSourceTable = sourceTable;
+		mGroupColumns = groupColumns;
+	}
+	
+	/**
+	 * @see BaseUriOps#setUriSelection(String...)
+	 * @return this object to allow for chaining
+	 */
+	public MaterializedAggregateUriOps setUriSelection(String... selection) {
+		mAccess.setUriSelection(selection);
+		return this;
+	}
+	
+	/**
+	 * @see BaseUriOps#setPermission(boolean, boolean)
+	 * @return this object to allow for chaining
+	 */
+	public MaterializedAggregateUriOps setPermission(boolean isReadable) {
+		mAccess.setPermission(isReadable, false);
+		return this;
+	}
+	
+	/**
+	 * @see BaseUriOps#setCallerQuota(CallerQuota)
+	 * @return this object to allow for chaining
+	 */
+	public MaterializedAggregateUriOps setCallerQuota(CallerQuota quota) {
+		mAccess.setCallerQuota(quota);
+		return this;
+	}
+	
+	/**
+	 * @param name column name in the side table.
+	 * @param column column of the source table. null is 0.
+	 * @return this object to allow for chaining
+	 */
+	public MaterializedAggregateUriOps addSum(String name, String column) {
+		mSumNames.add(name);
+		mSumColumns.add(column);
+		return this;
+	}
+	
+	public String getSourceTable() {
+		return mSourceTable;
+	}
+	
+	/**
+	 * @return the side table.
+	 */
+	public String getTableName() {
+		return mAccess.getTableName();
+	}
+	
+	@Override
+	protected String[] getObservedTables() {
+		return new String[] { mSourceTable };
+	}
+	
+	/**
+	 * @return DatabaseHistory which (re)creates the side table, its index and triggers and fills the side table.
+	 */
+	public EasyContentProvider.DatabaseHistory getDatabaseHistory() {
+		return new EasyContentProvider.DatabaseHistory() {
+			@Override
+			public void upgrade(SQLiteDatabase db) {
+				install(db); // in the transaction of the upgrade
+			}
+		};
+	}
+	
+	private void install(SQLiteDatabase db) {
+		String table = getTableName();
+		db.execSQL("DROP TRIGGER IF EXISTS " + table + "_insert");
+		db.execSQL("DROP TRIGGER IF EXISTS " + table + "_delete");
+		db.execSQL("DROP TRIGGER IF EXISTS " + table + "_update");
+		db.execSQL("DROP TABLE IF EXISTS " + table); // drops the index too
+		for (String definition : getDefinitions())
+			db.execSQL(definition);
+		fill(db);
+	}
+	
+	/**
+	 * Rebuild the side table from the source table in the database of this operations, and notify its uri.
+	 * 
+	 * @return the number of groups.
+	 */
+	public int rebuild() {
+		int groups = rebuild(getProvider().getWritableDatabase(this));
+		notifyChange();
+		return groups;
+	}
+	
+	/**
+	 * Rebuild the side table from the source table.
+	 * 
+	 * @param db
+	 * @return the number of groups.
+	 */
+	public int rebuild(SQLiteDatabase db) {
+		db.beginTransaction();
+		try {
+			db.delete(getTableName(), null, null);
+			int groups = fill(db);
+			db.setTransactionSuccessful();
+			return groups;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	private int fill(SQLiteDatabase db) {
+		String table = getTableName();
+		StringBuilder columns = new StringBuilder();
+		StringBuilder select = new StringBuilder();
+		for (String group : mGroupColumns) {
+			columns.append(group).append(",");
+			select.append(group).append(",");
+		}
+		columns.append(COLUMN_COUNT);
+		select.append("COUNT(*)");
+		for (int i=0; i<mSumNames.size(); i++) {
+			columns.append(",").append(mSumNames.get(i));
+			select.append(",COALESCE(SUM(").append(mSumColumns.get(i)).append("),0)");
+		}
+		StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(columns)
+			.append(") SELECT ").append(select).append(" FROM ").append(mSourceTable);
+		if (mGroupColumns.length > 0)
+			sql.append(" GROUP BY ").append(join(mGroupColumns, "", ","));
+		db.execSQL(sql.toString());
+		return (int)DatabaseUtils.queryNumEntries(db, table);
+	}
+	
+	// sql of the side table, index and triggers.
+	private String[] getDefinitions() {
+		String table = getTableName();
+		List<String> definitions = new ArrayList<String>();
+		
+		StringBuilder create = new StringBuilder("CREATE TABLE ").append(table).append(" (_id INTEGER PRIMARY KEY");
+		for (String group : mGroupColumns)
+			create.append(",").append(group);
+		create.append(",").append(COLUMN_COUNT).append(" INTEGER NOT NULL DEFAULT 0");
+		for (String sum : mSumNames)
+			create.append(",").append(sum).append(" NOT NULL DEFAULT 0");
+		create.append(")");
+		definitions.add(create.toString());
+		if (mGroupColumns.length > 0)
+			definitions.add("CREATE INDEX " + table + "_group ON " + table + " (" + join(mGroupColumns, "", ",") + ")");
+		
+		String add = getAddSql("NEW");
+		String remove = getRemoveSql("OLD");
+		definitions.add("CREATE TRIGGER " + table + "_insert AFTER INSERT ON " + mSourceTable + " BEGIN " + add + " END");
+		definitions.add("CREATE TRIGGER " + table + "_delete AFTER DELETE ON " + mSourceTable + " BEGIN " + remove + " END");
+		// only the update of group and sum columns changes the side table.
+		List<String> updateColumns = new ArrayList<String>(Arrays.asList(mGroupColumns));
+		for (String column : mSumColumns) {
+			if (!updateColumns.contains(column))
+				updateColumns.add(column);
+		}
+		if (!updateColumns.isEmpty()) {
+			definitions.add("CREATE TRIGGER " + table + "_update AFTER UPDATE OF " + join(updateColumns.toArray(new String[updateColumns.size()]), "", ",")
+					+ " ON " + mSourceTable + " BEGIN " + remove + " " + add + " END");
+		}
+		return definitions.toArray(new String[definitions.size()]);
+	}
+	
+	// add the row to its group. create the group if it doesn't exist.
+	private String getAddSql(String row) {
+		String where = getGroupWhere(row);
+		StringBuilder sb = new StringBuilder("INSERT INTO ").append(getTableName()).append(" (");
+		for (String group : mGroupColumns)
+			sb.append(group).append(",");
+		sb.append(COLUMN_COUNT).append(") SELECT ");
+		sb.append(join(mGroupColumns, row + ".", ","));
+		sb.append(mGroupColumns.length > 0 ? ",0" : "0");
+		sb.append(" WHERE NOT EXISTS (SELECT 1 FROM ").append(getTableName()).append(" WHERE ").append(where).append(");");
+		sb.append(" UPDATE ").append(getTableName()).append(" SET ").append(COLUMN_COUNT).append("=").append(COLUMN_COUNT).append("+1");
+		for (int i=0; i<mSumNames.size(); i++)
+			sb.append(",").append(mSumNames.get(i)).append("=").append(mSumNames.get(i)).append("+COALESCE(").append(row).append(".").append(mSumColumns.get(i)).append(",0)");
+		sb.append(" WHERE ").append(where).append(";");
+		return sb.toString();
+	}
+	
+	// remove the row from its group. delete the group if it is empty.
+	private String getRemoveSql(String row) {
+		String where = getGroupWhere(row);
+		StringBuilder sb = new StringBuilder("UPDATE ").append(getTableName()).append(" SET ").append(COLUMN_COUNT).append("=").append(COLUMN_COUNT).append("-1");
+		for (int i=0; i<mSumNames.size(); i++)
+			sb.append(",").append(mSumNames.get(i)).append("=").append(mSumNames.get(i)).append("-COALESCE(").append(row).append(".").append(mSumColumns.get(i)).append(",0)");
+		sb.append(" WHERE ").append(where).append(";");
+		sb.append(" DELETE FROM ").append(getTableName()).append(" WHERE ").append(COLUMN_COUNT).append("<=0 AND ").append(where).append(";");
+		return sb.toString();
+	}
+	
+	// "IS" so that null is a group too.
+	private String getGroupWhere(String row) {
+		if (mGroupColumns.length == 0)
+			return "1";
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<mGroupColumns.length; i++) {
+			if (i > 0)
+				sb.append(" AND ");
+			sb.append(mGroupColumns[i]).append(" IS ").append(row).append(".").append(mGroupColumns[i]);
+		}
+		return sb.toString();
+	}
+	
+	private static String join(String[] items, String prefix, String delimiter) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<items.length; i++) {
+			if (i > 0)
+				sb.append(delimiter);
+			sb.append(prefix).append(items[i]);
+		}
+		return sb.toString();
+	}
+	
+	@Override
+	public Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		return mAccess.query(db, uri, projection, selection, selectionArgs, sortOrder);
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Source of rows for EasyContentProvider.bulkInsert(Uri, String[], RowBinder).
+ * Values are bound to the compiled insert statement directly without ContentValues,
+ * so there is no boxing and no allocation for each column.
+ * 
+ * <pre>
+ * provider.bulkInsert(uri, new String[] { "name", "flag1" }, new RowBinder() {
+ *     int i = 0;
+ *     public boolean bindNextRow(SQLiteStatement statement) {
+ *         if (i == names.length) return false;
+ *         statement.bindString(1, names[i]);
+ *         statement.bindLong(2, flags[i]);
+ *         i++;
+ *         return true;
+ *     }
+ * });
+ * </pre>
+ */
+public interface RowBinder {
+	/**
+	 * Bind the values of the next row with bindLong/bindDouble/bindString/bindBlob/bindNull.
+	 * Index starts from 1 in the order of the columns. Unbound column is null.
+	 * 
+	 * @param statement compiled insert statement. don't execute or close it.
+	 * @return false if there is no more row.
+	 */
+	boolean bindNextRow(SQLiteStatement statement);
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Binder;
+
+/**
+ * Records every call of EasyContentProvider to a compact binary trace
+ * so that it can be replayed later with TraceReplayer.
+ * Start with EasyContentProvider.setTraceRecorder() and stop with setTraceRecorder(null).
+ * 
+ * Each record has operation, start time, duration, calling uid, uri and arguments.
+ * Operations in applyBatch() are recorded inside the record of the batch.
+ */
+public class TraceRecorder {
+	
+	static final int MAGIC = 0x45435054; // "ECPT"
+	static final int VERSION = 1;
+	
+	static final int OP_QUERY = 1;
+	static final int OP_INSERT = 2;
+	static final int OP_BULK_INSERT = 3;
+	static final int OP_UPDATE = 4;
+	static final int OP_DELETE = 5;
+	static final int OP_APPLY_BATCH = 6;
+	
+	static final int TYPE_NULL = 0;
+	static final int TYPE_STRING = 1;
+	static final int TYPE_LONG = 2;
+	static final int TYPE_DOUBLE = 3;
+	static final int TYPE_BOOLEAN = 4;
+	static final int TYPE_BLOB = 5;
+	
+	private DataOutputStream mOut;
+	private final long mStartTime;
+	private long mRecordCount;
+	private IOException mError;
+	
+	// record bytes buffered per thread, then written to the trace at once
+	private static class Buffer {
+		private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+		private final DataOutputStream mOut = new DataOutputStream(mBytes);
+		private int mCount;
+	}
+	private final ThreadLocal<Buffer> mRecord = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+	private final ThreadLocal<Buffer> mBatch = new ThreadLocal<Buffer>();
+	
+	/**
+	 * @param out trace is written to this stream. closed by close().
+	 * @throws IOException
+	 */
+	public TraceRecorder(OutputStream out) throws IOException {
+		mOut = new DataOutputStream(new BufferedOutputStream(out));
+		mOut.writeInt(MAGIC);
+		mOut.writeInt(VERSION);
+		mStartTime = System.nanoTime();
+	}
+	
+	public synchronized long getRecordCount() {
+		return mRecordCount;
+	}
+	
+	/**
+	 * @return the first error while writing. recording stops after an error.
+	 */
+	public synchronized IOException getError() {
+		return mError;
+	}
+	
+	public synchronized void close() throws IOException {
+		if (mOut != null) {
+			mOut.close();
+			mOut = null;
+		}
+	}
+	
+	void recordQuery(long startNanos, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		try {
+			DataOutputStream out = begin(OP_QUERY, uri);
+			writeStrings(out, projection);
+			writeString(out, selection);
+			writeStrings(out, selectionArgs);
+			writeString(out, sortOrder);
+			end(OP_QUERY, startNanos);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	void recordInsert(long startNanos, Uri uri, ContentValues values) {
+		try {
+			DataOutputStream out = begin(OP_INSERT, uri);
+			writeValues(out, values);
+			end(OP_INSERT, startNanos);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	void recordBulkInsert(long startNanos, Uri uri, ContentValues[] values) {
+		try {
+			DataOutputStream out = begin(OP_BULK_INSERT, uri);
+			out.writeInt(values.length);
+			for (ContentValues v : values)
+				writeValues(out, v);
+			end(OP_BULK_INSERT, startNanos);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	void recordUpdate(long startNanos, Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		try {
+			DataOutputStream out = begin(OP_UPDATE, uri);
+			writeValues(out, values);
+			writeString(out, selection);
+			writeStrings(out, selectionArgs);
+			end(OP_UPDATE, startNanos);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	void recordDelete(long startNanos, Uri uri, String selection, String[] selectionArgs) {
+		try {
+			DataOutputStream out = begin(OP_DELETE, uri);
+			writeString(out, selection);
+			writeStrings(out, selectionArgs);
+			end(OP_DELETE, startNanos);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	// operations until endBatch() in this thread are recorded inside the batch
+	void beginBatch() {
+		mBatch.set(new Buffer());
+	}
+	
+	void endBatch(long startNanos, boolean succeeded) {
+		Buffer batch = mBatch.get();
+		mBatch.set(null);
+		if (batch == null || !succeeded) return;
+		write(OP_APPLY_BATCH, startNanos, batch);
+	}
+	
+	// in batch, operation is written to the batch without header.
+	private DataOutputStream begin(int op, Uri uri) throws IOException {
+		Buffer batch = mBatch.get();
+		DataOutputStream out;
+		if (batch != null) {
+			out = batch.mOut;
+			out.writeByte(op);
+		} else {
+			Buffer record = mRecord.get();
+			record.mBytes.reset();
+			out = record.mOut;
+		}
+		writeString(out, uri.toString());
+		return out;
+	}
+	
+	private void end(int op, long startNanos) {
+		Buffer batch = mBatch.get();
+		if (batch != null)
+			batch.mCount++;
+		else
+			write(op, startNanos, mRecord.get());
+	}
+	
+	private synchronized void write(int op, long startNanos, Buffer buffer) {
+		if (mOut == null || mError != null) return;
+		try {
+			mOut.writeByte(op);
+			mOut.writeLong(startNanos - mStartTime);
+			mOut.writeLong(System.nanoTime() - startNanos);
+			mOut.writeInt(Binder.getCallingUid());
+			if (op == OP_APPLY_BATCH)
+				mOut.writeInt(buffer.mCount);
+			buffer.mBytes.writeTo(mOut);
+			mRecordCount++;
+		} catch (IOException e) {
+			mError = e;
+		}
+	}
+	
+	private synchronized void fail(IOException e) {
+		if (mError == null)
+			mError = e;
+	}
+	
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeBoolean(false);
+		} else {
+			out.writeBoolean(true);
+			writeText(out, s);
+		}
+	}
+	
+	// unlike writeUTF(), no 64KB limit
+	private static void writeText(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+		if (strings == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(strings.length);
+		for (String s : strings)
+			writeString(out, s);
+	}
+	
+	private static void writeValues(DataOutputStream out, ContentValues values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.size());
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			writeText(out, entry.getKey());
+			Object value = entry.getValue();
+			if (value == null) {
+				out.writeByte(TYPE_NULL);
+			} else if (value instanceof String) {
+				out.writeByte(TYPE_STRING);
+				writeText(out, (String)value);
+			} else if (value instanceof Double || value instanceof Float) {
+				out.writeByte(TYPE_DOUBLE);
+				out.writeDouble(((Number)value).doubleValue());
+			} else if (value instanceof Number) {
+				out.writeByte(TYPE_LONG);
+				out.writeLong(((Number)value).longValue());
+			} else if (value instanceof Boolean) {
+				out.writeByte(TYPE_BOOLEAN);
+				out.writeBoolean((Boolean)value);
+			} else if (value instanceof byte[]) {
+				out.writeByte(TYPE_BLOB);
+				out.writeInt(((byte[])value).length);
+				out.write((byte[])value);
+			} else {
+				out.writeByte(TYPE_STRING);
+				writeText(out, value.toString());
+			}
+		}
+	}
+}
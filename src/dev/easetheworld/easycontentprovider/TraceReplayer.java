@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2012 EaseTheWorld
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * https://github.com/EaseTheWorld/EasyContentProvider
+ */
+
+package dev.easetheworld.easycontentprovider;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Replays the trace written by TraceRecorder against a provider instance,
+ * for example a fresh provider of a new build, and reports throughput and latency percentiles.
+ * 
+ * <pre>
+ * List&lt;TraceReplayer.Record&gt; trace = TraceReplayer.read(in);
+ * TraceReplayer.Report report = new TraceReplayer(trace).setSpeed(2).setThreads(4).replay(provider);
+ * </pre>
+ * 
+ * Queries in applyBatch(assert operations) are replayed as assert operations with the same uri and selection.
+ * The expected values are not recorded, so they only read the rows.
+ */
+public class TraceReplayer {
+	
+	private static final String[] OP_NAMES = { null, "query", "insert", "bulkInsert", "update", "delete", "applyBatch" };
+	
+	/**
+	 * A call recorded in the trace.
+	 */
+	public static class Record {
+		private int mOp;
+		private long mStartNanos;
+		private long mDurationNanos;
+		private int mUid;
+		private Uri mUri;
+		private String[] mProjection;
+		private String mSelection;
+		private String[] mSelectionArgs;
+		private String mSortOrder;
+		private ContentValues[] mValues;
+		private List<Record> mBatch;
+		
+		public String getOperation() {
+			return OP_NAMES[mOp];
+		}
+		
+		/**
+		 * @return operations in applyBatch, or null if this is not applyBatch.
+		 */
+		public List<Record> getBatch() {
+			return mBatch;
+		}
+		
+		/**
+		 * @return start time from the beginning of the recording. 0 for operations in applyBatch.
+		 */
+		public long getStartNanos() {
+			return mStartNanos;
+		}
+		
+		/**
+		 * @return recorded duration. 0 for operations in applyBatch.
+		 */
+		public long getDurationNanos() {
+			return mDurationNanos;
+		}
+		
+		public int getCallingUid() {
+			return mUid;
+		}
+		
+		public Uri getUri() {
+			return mUri;
+		}
+	}
+	
+	/**
+	 * Read the whole trace.
+	 * 
+	 * @param in
+	 * @return records in the order of the start time.
+	 * @throws IOException if the trace is broken.
+	 */
+	public static List<Record> read(InputStream in) throws IOException {
+		DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+		if (din.readInt() != TraceRecorder.MAGIC)
+			throw new IOException("Not a trace");
+		int version = din.readInt();
+		if (version != TraceRecorder.VERSION)
+			throw new IOException("Unknown trace version " + version);
+		
+		List<Record> records = new ArrayList<Record>();
+		while (true) {
+			int op = din.read();
+			if (op < 0) break; // end of trace
+			Record r = new Record();
+			r.mOp = op;
+			r.mStartNanos = din.readLong();
+			r.mDurationNanos = din.readLong();
+			r.mUid = din.readInt();
+			if (op == TraceRecorder.OP_APPLY_BATCH) {
+				int count = din.readInt();
+				r.mBatch = new ArrayList<Record>(count);
+				for (int i=0; i<count; i++) {
+					Record child = new Record();
+					child.mOp = din.readByte();
+					child.mUid = r.mUid;
+					readPayload(din, child);
+					r.mBatch.add(child);
+				}
+			} else {
+				readPayload(din, r);
+			}
+			records.add(r);
+		}
+		
+		// recorded at the end of each call
+		Collections.sort(records, new Comparator<Record>() {
+			@Override
+			public int compare(Record lhs, Record rhs) {
+				return lhs.mStartNanos < rhs.mStartNanos ? -1 : (lhs.mStartNanos == rhs.mStartNanos ? 0 : 1);
+			}
+		});
+		return records;
+	}
+	
+	private static void readPayload(DataInputStream in, Record r) throws IOException {
+		r.mUri = Uri.parse(readString(in));
+		switch (r.mOp) {
+		case TraceRecorder.OP_QUERY:
+			r.mProjection = readStrings(in);
+			r.mSelection = readString(in);
+			r.mSelectionArgs = readStrings(in);
+			r.mSortOrder = readString(in);
+			break;
+		case TraceRecorder.OP_INSERT:
+			r.mValues = new ContentValues[] { readValues(in) };
+			break;
+		case TraceRecorder.OP_BULK_INSERT:
+			r.mValues = new ContentValues[in.readInt()];
+			for (int i=0; i<r.mValues.length; i++)
+				r.mValues[i] = readValues(in);
+			break;
+		case TraceRecorder.OP_UPDATE:
+			r.mValues = new ContentValues[] { readValues(in) };
+			r.mSelection = readString(in);
+			r.mSelectionArgs = readStrings(in);
+			break;
+		case TraceRecorder.OP_DELETE:
+			r.mSelection = readString(in);
+			r.mSelectionArgs = readStrings(in);
+			break;
+		default:
+			throw new IOException("Unknown operation " + r.mOp);
+		}
+	}
+	
+	private static String readText(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? readText(in) : null;
+	}
+	
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		String[] strings = new String[length];
+		for (int i=0; i<length; i++)
+			strings[i] = readString(in);
+		return strings;
+	}
+	
+	private static ContentValues readValues(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) return null;
+		ContentValues values = new ContentValues(size);
+		for (int i=0; i<size; i++) {
+			String key = readText(in);
+			int type = in.readByte();
+			switch (type) {
+			case TraceRecorder.TYPE_NULL:
+				values.putNull(key);
+				break;
+			case TraceRecorder.TYPE_STRING:
+				values.put(key, readText(in));
+				break;
+			case TraceRecorder.TYPE_LONG:
+				values.put(key, in.readLong());
+				break;
+			case TraceRecorder.TYPE_DOUBLE:
+				values.put(key, in.readDouble());
+				break;
+			case TraceRecorder.TYPE_BOOLEAN:
+				values.put(key, in.readBoolean());
+				break;
+			case TraceRecorder.TYPE_BLOB:
+				byte[] blob = new byte[in.readInt()];
+				in.readFully(blob);
+				values.put(key, blob);
+				break;
+			default:
+				throw new EOFException("Unknown value type " + type);
+			}
+		}
+		return values;
+	}
+	
+	private final List<Record> mRecords;
+	private double mSpeed = 1;
+	private int mThreads = 1;
+	
+	public TraceReplayer(List<Record> records) {
+		mRecords = records;
+	}
+	
+	/**
+	 * @param speed 1 is the original speed, 2 is twice faster. 0 replays as fast as possible.
+	 * @return this object to allow for chaining
+	 */
+	public TraceReplayer setSpeed(double speed) {
+		mSpeed = speed;
+		return this;
+	}
+	
+	/**
+	 * @param threads concurrent callers. default is 1.
+	 * @return this object to allow for chaining
+	 */
+	public TraceReplayer setThreads(int threads) {
+		mThreads = threads;
+		return this;
+	}
+	
+	/**
+	 * Replay all records and wait until they are finished.
+	 * 
+	 * @param provider
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Report replay(final ContentProvider provider) throws InterruptedException {
+		final Report report = new Report();
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+		long replayStart = System.nanoTime();
+		for (final Record r : mRecords) {
+			if (mSpeed > 0) { // keep the original interval
+				long waitNanos = (long)(r.mStartNanos / mSpeed) - (System.nanoTime() - replayStart);
+				if (waitNanos > 0)
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					try {
+						call(provider, r);
+						report.add(r.mOp, System.nanoTime() - start);
+						if (r.mBatch != null)
+							report.addBatch(r.mBatch);
+					} catch (Exception e) {
+						report.addError(r.mOp);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		report.mElapsedNanos = System.nanoTime() - replayStart;
+		return report;
+	}
+	
+	private static void call(ContentProvider provider, Record r) throws Exception {
+		switch (r.mOp) {
+		case TraceRecorder.OP_QUERY:
+			Cursor c = provider.query(r.mUri, r.mProjection, r.mSelection, r.mSelectionArgs, r.mSortOrder);
+			if (c != null) {
+				c.getCount(); // fill the window like a client
+				c.close();
+			}
+			break;
+		case TraceRecorder.OP_INSERT:
+			provider.insert(r.mUri, r.mValues[0]);
+			break;
+		case TraceRecorder.OP_BULK_INSERT:
+			provider.bulkInsert(r.mUri, r.mValues);
+			break;
+		case TraceRecorder.OP_UPDATE:
+			provider.update(r.mUri, r.mValues[0], r.mSelection, r.mSelectionArgs);
+			break;
+		case TraceRecorder.OP_DELETE:
+			provider.delete(r.mUri, r.mSelection, r.mSelectionArgs);
+			break;
+		case TraceRecorder.OP_APPLY_BATCH:
+			ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(r.mBatch.size());
+			for (Record child : r.mBatch) {
+				switch (child.mOp) {
+				case TraceRecorder.OP_INSERT:
+					operations.add(ContentProviderOperation.newInsert(child.mUri).withValues(child.mValues[0]).build());
+					break;
+				case TraceRecorder.OP_UPDATE:
+					operations.add(ContentProviderOperation.newUpdate(child.mUri).withValues(child.mValues[0])
+							.withSelection(child.mSelection, child.mSelectionArgs).build());
+					break;
+				case TraceRecorder.OP_DELETE:
+					operations.add(ContentProviderOperation.newDelete(child.mUri)
+							.withSelection(child.mSelection, child.mSelectionArgs).build());
+					break;
+				case TraceRecorder.OP_QUERY: // assert
+					operations.add(ContentProviderOperation.newAssertQuery(child.mUri)
+							.withSelection(child.mSelection, child.mSelectionArgs).build());
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown operation in batch " + child.mOp);
+				}
+			}
+			provider.applyBatch(operations);
+			break;
+		}
+	}
+	
+	/**
+	 * Result of replay.
+	 */
+	public static class Report {
+		private final long[][] mLatencies = new long[OP_NAMES.length][];
+		private final int[] mCounts = new int[OP_NAMES.length];
+		private final int[] mErrors = new int[OP_NAMES.length];
+		private final int[] mBatchCounts = new int[OP_NAMES.length]; // operations in the replayed batches
+		private long mElapsedNanos;
+		
+		private Report() {
+			for (int i=1; i<OP_NAMES.length; i++)
+				mLatencies[i] = new long[16];
+		}
+		
+		private synchronized void add(int op, long latencyNanos) {
+			if (mCounts[op] == mLatencies[op].length)
+				mLatencies[op] = Arrays.copyOf(mLatencies[op], mCounts[op] * 2);
+			mLatencies[op][mCounts[op]++] = latencyNanos;
+		}
+		
+		private synchronized void addError(int op) {
+			mErrors[op]++;
+		}
+		
+		private synchronized void addBatch(List<Record> batch) {
+			for (Record r : batch)
+				mBatchCounts[r.mOp]++;
+		}
+		
+		public long getElapsedNanos() {
+			return mElapsedNanos;
+		}
+		
+		/**
+		 * @return finished calls per second.
+		 */
+		public synchronized double getThroughput() {
+			int count = 0;
+			for (int c : mCounts)
+				count += c;
+			return count * 1000000000d / mElapsedNanos;
+		}
+		
+		public synchronized int getErrorCount() {
+			int count = 0;
+			for (int c : mErrors)
+				count += c;
+			return count;
+		}
+		
+		/**
+		 * @param operation "query", "insert", "update" or "delete"
+		 * @return the number of the operations in the batches which are replayed without error.
+		 */
+		public synchronized int getBatchOperationCount(String operation) {
+			for (int op=1; op<OP_NAMES.length; op++) {
+				if (OP_NAMES[op].equals(operation))
+					return mBatchCounts[op];
+			}
+			return 0;
+		}
+		
+		/**
+		 * @param operation "query", "insert", "bulkInsert", "update", "delete", "applyBatch" or null for all.
+		 * @param percentile 0 to 100
+		 * @return latency in nanoseconds. 0 if there is no call.
+		 */
+		public synchronized long getLatencyNanos(String operation, double percentile) {
+			long[] sorted = sortedLatencies(operation);
+			if (sorted.length == 0) return 0;
+			int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+		}
+		
+		private long[] sortedLatencies(String operation) {
+			int total = 0;
+			for (int op=1; op<OP_NAMES.length; op++) {
+				if (operation == null || operation.equals(OP_NAMES[op]))
+					total += mCounts[op];
+			}
+			long[] all = new long[total];
+			int n = 0;
+			for (int op=1; op<OP_NAMES.length; op++) {
+				if (operation == null || operation.equals(OP_NAMES[op])) {
+					System.arraycopy(mLatencies[op], 0, all, n, mCounts[op]);
+					n += mCounts[op];
+				}
+			}
+			Arrays.sort(all);
+			return all;
+		}
+		
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.US, "%.1f calls/s in %d ms, %d errors%n",
+					getThroughput(), mElapsedNanos / 1000000, getErrorCount()));
+			for (int op=1; op<OP_NAMES.length; op++) {
+				if (mCounts[op] == 0 && mErrors[op] == 0) continue;
+				String name = OP_NAMES[op];
+				sb.append(String.format(Locale.US, "%-10s n=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms errors=%d%n",
+						name, mCounts[op],
+						getLatencyNanos(name, 50) / 1e6, getLatencyNanos(name, 90) / 1e6,
+						getLatencyNanos(name, 99) / 1e6, getLatencyNanos(name, 100) / 1e6, mErrors[op]));
+			}
+			if (mCounts[TraceRecorder.OP_APPLY_BATCH] > 0) {
+				sb.append("in batches");
+				for (int op=1; op<OP_NAMES.length; op++) {
+					if (mBatchCounts[op] > 0)
+						sb.append(' ').append(OP_NAMES[op]).append('=').append(mBatchCounts[op]);
+				}
+				sb.append(String.format(Locale.US, "%n"));
+			}
+			return sb.toString();
+		}
+	}
+}
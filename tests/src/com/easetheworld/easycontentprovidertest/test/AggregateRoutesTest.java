@@ -0,0 +1,154 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import dev.easetheworld.easycontentprovider.AggregateUriOps;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class AggregateRoutesTest extends EasyProviderTestCase<AggregateRoutesTest.AggregateProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.aggregate";
+	
+	public static class AggregateProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT, flag INTEGER);");
+						db.execSQL("CREATE TABLE origin (_id INTEGER PRIMARY KEY, name TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese").setAggregateRoutes(true),
+				new BaseUriOps("cheese/#").setUriSelection("_id=?"),
+				new BaseUriOps("origin"), // no aggregate routes by default
+				new BaseUriOps("origin/*").setUriSelection("name=?"),
+			};
+		}
+	}
+	
+	// "cheese/*" and the routes of "cheese"
+	public static class CollidingProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY + ".colliding";
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[0];
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese").setAggregateRoutes(true),
+				new BaseUriOps("cheese/*").setUriSelection("name=?"),
+			};
+		}
+	}
+	
+	public AggregateRoutesTest() {
+		super(AggregateProvider.class, AUTHORITY);
+	}
+	
+	public void testCountRoute() {
+		insert("cheese", "brie", 1);
+		insert("cheese", "comte", 1);
+		insert("cheese", "feta", 0);
+		
+		Cursor c = mProvider.query(uri("cheese/_count?groupBy=flag"), null, null, null, "flag");
+		try {
+			assertEquals(2, c.getCount());
+			c.moveToLast();
+			assertEquals(1, c.getInt(c.getColumnIndexOrThrow("flag")));
+			assertEquals(2, c.getInt(c.getColumnIndexOrThrow(AggregateUriOps.COLUMN_COUNT)));
+		} finally {
+			c.close();
+		}
+	}
+	
+	// insert notifies "cheese/1" and item update notifies "cheese/1", which are not the ancestors of "cheese/_count".
+	public void testCountNotifiedByItemWrites() throws Exception {
+		final Semaphore changes = new Semaphore(0);
+		ContentObserver observer = new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				changes.release();
+			}
+		};
+		getContext().getContentResolver().registerContentObserver(AggregateUriOps.countUri(uri("cheese")), false, observer);
+		try {
+			insert("cheese", "brie", 1);
+			assertTrue(changes.tryAcquire(5, TimeUnit.SECONDS));
+			
+			ContentValues values = new ContentValues();
+			values.put("flag", 0);
+			assertEquals(1, mProvider.update(uri("cheese/1"), values, null, null));
+			assertTrue(changes.tryAcquire(5, TimeUnit.SECONDS));
+		} finally {
+			getContext().getContentResolver().unregisterContentObserver(observer);
+		}
+	}
+	
+	public void testRowNamedCountWithoutRoutes() {
+		ContentValues values = new ContentValues();
+		values.put("name", AggregateUriOps.PATH_COUNT);
+		assertNotNull(mProvider.insert(uri("origin"), values));
+		
+		Cursor c = mProvider.query(uri("origin/" + AggregateUriOps.PATH_COUNT), new String[] { "name" }, null, null, null);
+		try {
+			assertEquals(1, c.getCount());
+			c.moveToFirst();
+			assertEquals(AggregateUriOps.PATH_COUNT, c.getString(0));
+		} finally {
+			c.close();
+		}
+	}
+	
+	public void testRoutesNeedCollectionPath() {
+		try {
+			new BaseUriOps("origin/*").setAggregateRoutes(true);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			new BaseUriOps("origin/#").setAggregateRoutes(true);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	public void testRoutesRefuseChildWildcard() {
+		try {
+			new CollidingProvider().attachInfo(getContext(), null);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+	
+	private void insert(String path, String name, int flag) {
+		ContentValues values = new ContentValues();
+		values.put("name", name);
+		values.put("flag", flag);
+		assertNotNull(mProvider.insert(uri(path), values));
+	}
+}
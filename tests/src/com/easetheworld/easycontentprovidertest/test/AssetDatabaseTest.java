@@ -0,0 +1,91 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.File;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import dev.easetheworld.easycontentprovider.AssetDatabaseHelper;
+
+/**
+ * assets/origins.db of the sample app is copied to "test.origins.db.version".
+ */
+public class AssetDatabaseTest extends AndroidTestCase {
+	
+	private static final String PREFIX = "test.";
+	private static final String ASSET = "origins.db";
+	
+	private Context mContext;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteDatabases();
+		mContext = new RenamingDelegatingContext(getContext(), PREFIX);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		deleteDatabases();
+		super.tearDown();
+	}
+	
+	public void testInstall() {
+		AssetDatabaseHelper helper = new AssetDatabaseHelper(mContext, ASSET, 1);
+		try {
+			assertEquals(6, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "origin"));
+		} finally {
+			helper.close();
+		}
+		assertTrue(databaseFile(1).exists());
+		assertFalse(new File(databaseFile(1).getPath() + ".tmp").exists());
+	}
+	
+	public void testVersionDeletesOldCopy() {
+		AssetDatabaseHelper helper = new AssetDatabaseHelper(mContext, ASSET, 1);
+		helper.getReadableDatabase();
+		helper.close();
+		
+		helper = new AssetDatabaseHelper(mContext, ASSET, 2);
+		try {
+			assertEquals(6, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "origin"));
+		} finally {
+			helper.close();
+		}
+		assertTrue(databaseFile(2).exists());
+		assertFalse(databaseFile(1).exists());
+	}
+	
+	public void testReadOnly() {
+		AssetDatabaseHelper helper = new AssetDatabaseHelper(mContext, ASSET, 1);
+		try {
+			SQLiteDatabase db = helper.getWritableDatabase();
+			assertTrue(db.isReadOnly());
+			ContentValues values = new ContentValues();
+			values.put("name", "Greece");
+			try {
+				db.insertOrThrow("origin", null, values);
+				fail();
+			} catch (SQLiteException e) {
+			}
+			assertEquals(6, DatabaseUtils.queryNumEntries(db, "origin"));
+		} finally {
+			helper.close();
+		}
+	}
+	
+	private File databaseFile(int version) {
+		return getContext().getDatabasePath(PREFIX + ASSET + "." + version);
+	}
+	
+	private void deleteDatabases() {
+		for (String name : getContext().databaseList()) {
+			if (name.startsWith(PREFIX + ASSET))
+				getContext().deleteDatabase(name);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import dev.easetheworld.easycontentprovider.AsyncResolver;
+
+public class AsyncResolverTest extends AndroidTestCase {
+	
+	private static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.async";
+	private static final Uri URI = Uri.parse("content://" + AUTHORITY + "/item");
+	
+	// query() waits until the test opens the gate.
+	public static class BlockingProvider extends ContentProvider {
+		final CountDownLatch mGate = new CountDownLatch(1);
+		final AtomicInteger mQueries = new AtomicInteger();
+		volatile Cursor mLastCursor;
+		
+		@Override
+		public boolean onCreate() {
+			return true;
+		}
+		
+		@Override
+		public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+			mQueries.incrementAndGet();
+			try {
+				mGate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return null;
+			}
+			MatrixCursor cursor = new MatrixCursor(new String[] {"_id"});
+			cursor.addRow(new Object[] {1});
+			mLastCursor = cursor;
+			return cursor;
+		}
+		
+		@Override
+		public Uri insert(Uri uri, ContentValues values) {
+			return Uri.withAppendedPath(uri, "1");
+		}
+		
+		@Override
+		public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+			return 0;
+		}
+		
+		@Override
+		public int delete(Uri uri, String selection, String[] selectionArgs) {
+			return 0;
+		}
+		
+		@Override
+		public String getType(Uri uri) {
+			return null;
+		}
+	}
+	
+	private BlockingProvider mProvider;
+	private ExecutorService mExecutor;
+	private AsyncResolver mResolver;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mProvider = new BlockingProvider();
+		MockContentResolver resolver = new MockContentResolver();
+		resolver.addProvider(AUTHORITY, mProvider);
+		mExecutor = Executors.newCachedThreadPool();
+		mResolver = new AsyncResolver(resolver, mExecutor).setCoalesceQueries(true);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		mProvider.mGate.countDown();
+		mExecutor.shutdown();
+		super.tearDown();
+	}
+	
+	public void testIdenticalQueriesShareOneCall() throws Exception {
+		Future<Cursor> first = mResolver.query(URI, null, null, null, null, null);
+		Future<Cursor> second = mResolver.query(URI, null, null, null, null, null);
+		mProvider.mGate.countDown();
+		Cursor a = first.get();
+		Cursor b = second.get();
+		assertEquals(1, mProvider.mQueries.get());
+		assertTrue(a.moveToFirst());
+		assertTrue(b.moveToFirst());
+		a.close();
+		assertFalse(mProvider.mLastCursor.isClosed());
+		b.close();
+		assertTrue(mProvider.mLastCursor.isClosed());
+	}
+	
+	// observers of a closed view are removed from the shared cursor which the other views still use.
+	public void testCloseUnregistersObservers() throws Exception {
+		Future<Cursor> first = mResolver.query(URI, null, null, null, null, null);
+		Future<Cursor> second = mResolver.query(URI, null, null, null, null, null);
+		mProvider.mGate.countDown();
+		Cursor a = first.get();
+		Cursor b = second.get();
+		final AtomicInteger changesA = new AtomicInteger();
+		final AtomicInteger changesB = new AtomicInteger();
+		a.registerDataSetObserver(new DataSetObserver() {
+			@Override
+			public void onChanged() {
+				changesA.incrementAndGet();
+			}
+		});
+		b.registerDataSetObserver(new DataSetObserver() {
+			@Override
+			public void onChanged() {
+				changesB.incrementAndGet();
+			}
+		});
+		a.close();
+		mProvider.mLastCursor.requery(); // notifies the observers of the shared cursor
+		assertEquals(0, changesA.get());
+		assertEquals(1, changesB.get());
+		b.close();
+	}
+	
+	public void testCancelAfterFinishReleasesCursor() throws Exception {
+		Future<Cursor> taken = mResolver.query(URI, null, null, null, null, null);
+		Future<Cursor> dropped = mResolver.query(URI, null, null, null, null, null);
+		mProvider.mGate.countDown();
+		Cursor cursor = taken.get();
+		assertTrue(dropped.cancel(false)); // finished but never taken
+		cursor.close();
+		assertTrue(mProvider.mLastCursor.isClosed());
+	}
+	
+	public void testWriteStopsSharingRunningQuery() throws Exception {
+		Future<Cursor> before = mResolver.query(URI, null, null, null, null, null);
+		mResolver.insert(URI, new ContentValues(), null).get(5, TimeUnit.SECONDS);
+		Future<Cursor> after = mResolver.query(URI, null, null, null, null, null);
+		mProvider.mGate.countDown();
+		before.get().close();
+		after.get().close();
+		assertEquals(2, mProvider.mQueries.get());
+	}
+}
@@ -0,0 +1,165 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.File;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import dev.easetheworld.easycontentprovider.BackfillHistory;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class BackfillTest extends EasyProviderTestCase<BackfillTest.BackfillProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.backfill";
+	
+	private static final int ROWS = 3000;
+	private static final long TIMEOUT_MILLIS = 30 * 1000;
+	
+	public static class BackfillProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT NOT NULL);");
+						for (int i=0; i<ROWS; i++)
+							db.execSQL("INSERT INTO cheese (name) VALUES (?);", new Object[] { "Cheese " + i });
+					}
+				},
+				new BackfillHistory("cheese", "name_key", "TEXT", "lower(name)").setChunkRows(50),
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BaseUriOps("backfill", "_easy_backfill"), // progress of the backfill
+			};
+		}
+	}
+	
+	public BackfillTest() {
+		super(BackfillProvider.class, AUTHORITY);
+	}
+	
+	public void testFallbackBeforeDone() throws Exception {
+		assertTrue(countStoredNull() > 0); // the backfill is just started
+		Cursor c = mProvider.query(uri("cheese"), null, null, null, "_id"); // all columns
+		try {
+			assertEquals(ROWS, c.getCount());
+			int nameIndex = c.getColumnIndexOrThrow("name");
+			int keyIndex = c.getColumnIndexOrThrow("name_key");
+			while (c.moveToNext())
+				assertEquals(c.getString(nameIndex).toLowerCase(), c.getString(keyIndex));
+		} finally {
+			c.close();
+		}
+		waitForDone();
+	}
+	
+	public void testResumeAfterRestart() throws Exception {
+		countStoredNull(); // starts the backfill
+		ContentValues values = new ContentValues();
+		values.put("name_key", "custom");
+		assertEquals(1, mProvider.update(uri("cheese"), values, "_id=?", new String[] { String.valueOf(ROWS) }));
+		long lastRowId = waitForProgress(Long.MIN_VALUE);
+		
+		mProvider.shutdown(); // stops the backfill
+		mProvider = newProvider();
+		long resumedRowId = waitForProgress(lastRowId);
+		assertTrue(resumedRowId > lastRowId);
+		waitForDone();
+		assertKeys("custom");
+	}
+	
+	public void testRetryAfterBusy() throws Exception {
+		countStoredNull(); // starts the backfill
+		waitForProgress(Long.MIN_VALUE);
+		
+		// lock the database longer than the busy timeout, so chunks fail
+		File path = getContext().getDatabasePath("test." + BackfillProvider.class.getSimpleName() + ".db");
+		SQLiteDatabase other = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+		try {
+			other.beginTransaction(); // exclusive
+			try {
+				SystemClock.sleep(3000);
+			} finally {
+				other.endTransaction();
+			}
+		} finally {
+			other.close();
+		}
+		waitForDone();
+		assertKeys(null);
+	}
+	
+	private int countStoredNull() {
+		Cursor c = mProvider.query(uri("cheese"), new String[] { "count(*)" }, "name_key IS NULL", null, null);
+		try {
+			c.moveToFirst();
+			return c.getInt(0);
+		} finally {
+			c.close();
+		}
+	}
+	
+	// wait until the checkpoint is after given rowid, and return the checkpoint
+	private long waitForProgress(long rowId) {
+		long end = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+		while (SystemClock.uptimeMillis() < end) {
+			Cursor c = mProvider.query(uri("backfill"), new String[] { "last_rowid" }, null, null, null);
+			try {
+				assertTrue("backfill is done before the check", c.moveToFirst());
+				if (c.getLong(0) > rowId)
+					return c.getLong(0);
+			} finally {
+				c.close();
+			}
+			SystemClock.sleep(5);
+		}
+		fail("backfill didn't progress");
+		return rowId;
+	}
+	
+	private void waitForDone() {
+		long end = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+		while (SystemClock.uptimeMillis() < end) {
+			Cursor c = mProvider.query(uri("backfill"), null, null, null, null);
+			try {
+				if (c.getCount() == 0) {
+					assertEquals(0, countStoredNull());
+					return;
+				}
+			} finally {
+				c.close();
+			}
+			SystemClock.sleep(100);
+		}
+		fail("backfill isn't done");
+	}
+	
+	// stored name_key is lower(name) except the last row, which was written by the client
+	private void assertKeys(String lastKey) {
+		Cursor c = mProvider.query(uri("cheese"), new String[] { "_id", "name", "name_key" }, null, null, "_id");
+		try {
+			assertEquals(ROWS, c.getCount());
+			while (c.moveToNext()) {
+				if (lastKey != null && c.getInt(0) == ROWS)
+					assertEquals(lastKey, c.getString(2));
+				else
+					assertEquals(c.getString(1).toLowerCase(), c.getString(2));
+			}
+		} finally {
+			c.close();
+		}
+	}
+}
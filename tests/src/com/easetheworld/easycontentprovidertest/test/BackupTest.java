@@ -0,0 +1,151 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import dev.easetheworld.easycontentprovider.BackupUriOps;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class BackupTest extends EasyProviderTestCase<BackupTest.BackupProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.backup";
+	
+	public static class BackupProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT);");
+						db.execSQL("CREATE INDEX cheese_name ON cheese (name);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BackupUriOps("backup").setPagesPerStep(1).setMaxRestarts(20),
+			};
+		}
+	}
+	
+	private File mCopy;
+	
+	public BackupTest() {
+		super(BackupProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mCopy = new File(getContext().getCacheDir(), "test.backup.db");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		mCopy.delete();
+		super.tearDown();
+	}
+	
+	public void testCopy() throws Exception {
+		insert(0, 500);
+		download();
+		assertEquals(500, countRows());
+	}
+	
+	// the copy is one of the committed states, and the writer keeps committing during the copy.
+	public void testCopyDuringWrites() throws Exception {
+		insert(0, 500);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicInteger commits = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i=1; !stop.get(); i++) {
+						insert(i * 10000, 10); // 10 rows in one transaction
+						commits.incrementAndGet();
+						SystemClock.sleep(20);
+					}
+				} catch (Throwable e) { // ex. database is locked
+					error.set(e);
+				}
+			}
+		};
+		writer.start();
+		int commitsBefore = commits.get();
+		try {
+			download();
+		} finally {
+			stop.set(true);
+			writer.join();
+		}
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+		assertTrue(commits.get() > commitsBefore);
+		long rows = countRows();
+		assertTrue(rows >= 500);
+		assertEquals(0, rows % 10);
+	}
+	
+	// stream the backup to mCopy and check it.
+	private void download() throws Exception {
+		ParcelFileDescriptor pfd = mProvider.openFile(uri("backup"), "r");
+		InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		OutputStream out = new FileOutputStream(mCopy);
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+		} finally {
+			in.close();
+			out.close();
+		}
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(mCopy.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+		try {
+			assertEquals("ok", DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null));
+		} finally {
+			db.close();
+		}
+	}
+	
+	private long countRows() {
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(mCopy.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+		try {
+			return DatabaseUtils.queryNumEntries(db, "cheese");
+		} finally {
+			db.close();
+		}
+	}
+	
+	private void insert(int first, int count) {
+		ContentValues[] values = new ContentValues[count];
+		for (int i=0; i<count; i++) {
+			values[i] = new ContentValues();
+			values[i].put("name", "cheese " + (first + i) + " with a name long enough to fill some pages");
+		}
+		assertEquals(count, mProvider.bulkInsert(uri("cheese"), values));
+	}
+}
@@ -0,0 +1,166 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.mock.MockContentResolver;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.ChunkedResolver;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class ChunkedResolverTest extends EasyProviderTestCase<ChunkedResolverTest.ChunkProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.chunked";
+	
+	private static final int MAX_CHUNK_BYTES = 8 * 1024;
+	
+	// remembers the size of each call
+	public static class ChunkProvider extends EasyContentProvider {
+		final List<Integer> mChunks = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT, memo TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BaseUriOps("cheese/#").setUriSelection("_id=?"),
+			};
+		}
+		
+		@Override
+		public int bulkInsert(Uri uri, ContentValues[] values) {
+			mChunks.add(values.length);
+			return super.bulkInsert(uri, values);
+		}
+		
+		@Override
+		public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+			mChunks.add(operations.size());
+			return super.applyBatch(operations);
+		}
+	}
+	
+	private ChunkedResolver mResolver;
+	
+	public ChunkedResolverTest() {
+		super(ChunkProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		MockContentResolver resolver = new MockContentResolver();
+		resolver.addProvider(AUTHORITY, mProvider);
+		mResolver = new ChunkedResolver(resolver).setMaxChunkBytes(MAX_CHUNK_BYTES);
+	}
+	
+	public void testChunkBoundaries() {
+		ContentValues[] values = new ContentValues[100];
+		for (int i=0; i<values.length; i++)
+			values[i] = values("cheese " + i, memo(500));
+		assertEquals(100, mResolver.bulkInsert(uri("cheese"), values));
+		assertEquals(100, count());
+		
+		assertTrue(mProvider.mChunks.size() > 1);
+		int from = 0;
+		for (int rows : mProvider.mChunks) {
+			ContentValues[] chunk = Arrays.copyOfRange(values, from, from + rows);
+			assertTrue(size(chunk) <= MAX_CHUNK_BYTES); // under the limit
+			if (from + rows < values.length) // and the largest
+				assertTrue(size(Arrays.copyOfRange(values, from, from + rows + 1)) > MAX_CHUNK_BYTES);
+			from += rows;
+		}
+		assertEquals(values.length, from);
+	}
+	
+	public void testValueOverLimitIsSentAlone() {
+		ContentValues[] values = new ContentValues[] {
+				values("brie", "small"),
+				values("comte", memo(MAX_CHUNK_BYTES * 2)),
+				values("feta", "small"),
+		};
+		assertEquals(3, mResolver.bulkInsert(uri("cheese"), values));
+		assertEquals(Arrays.asList(1, 1, 1), mProvider.mChunks);
+		assertEquals(3, count());
+	}
+	
+	public void testBackReferenceInFirstChunk() throws Exception {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newInsert(uri("cheese")).withValues(values("brie", "small")).build());
+		operations.add(ContentProviderOperation.newUpdate(uri("cheese")).withValue("memo", "updated")
+				.withSelection("_id=?", new String[1]).withSelectionBackReference(0, 0).build());
+		ContentProviderResult[] results = mResolver.applyBatch(AUTHORITY, operations);
+		assertEquals(2, results.length);
+		assertEquals(1, results[1].count.intValue());
+		assertEquals(1, mProvider.mChunks.size());
+	}
+	
+	public void testBackReferenceAcrossChunks() throws Exception {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (int i=0; i<30; i++)
+			operations.add(ContentProviderOperation.newInsert(uri("cheese")).withValues(values("cheese " + i, memo(500))).build());
+		operations.add(ContentProviderOperation.newUpdate(uri("cheese")).withValue("memo", "updated")
+				.withSelection("_id=?", new String[1]).withSelectionBackReference(0, 0).build());
+		try {
+			mResolver.applyBatch(AUTHORITY, operations);
+			fail();
+		} catch (OperationApplicationException e) {
+		}
+		assertEquals(0, mProvider.mChunks.size()); // nothing is sent
+		assertEquals(0, count());
+	}
+	
+	private static ContentValues values(String name, String memo) {
+		ContentValues values = new ContentValues();
+		values.put("name", name);
+		values.put("memo", memo);
+		return values;
+	}
+	
+	private static String memo(int length) {
+		char[] chars = new char[length];
+		Arrays.fill(chars, 'm');
+		return new String(chars);
+	}
+	
+	private static int size(ContentValues[] values) {
+		int bytes = 0;
+		for (ContentValues v : values)
+			bytes += ChunkedResolver.sizeOf(v);
+		return bytes;
+	}
+	
+	private int count() {
+		Cursor c = mProvider.query(uri("cheese"), null, null, null, null);
+		try {
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+}
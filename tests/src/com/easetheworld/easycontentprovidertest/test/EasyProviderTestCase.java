@@ -0,0 +1,67 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import android.content.Context;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+/**
+ * Runs a provider on "test." databases which are deleted before and after each test.
+ */
+public abstract class EasyProviderTestCase<T extends EasyContentProvider> extends AndroidTestCase {
+	
+	private static final String PREFIX = "test.";
+	
+	private final Class<T> mProviderClass;
+	private final String mAuthority;
+	private Context mProviderContext;
+	protected T mProvider;
+	
+	public EasyProviderTestCase(Class<T> providerClass, String authority) {
+		mProviderClass = providerClass;
+		mAuthority = authority;
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteDatabases();
+		mProviderContext = new RenamingDelegatingContext(getContext(), PREFIX);
+		mProvider = newProvider();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		if (mProvider != null) {
+			mProvider.shutdown();
+			mProvider = null;
+		}
+		deleteDatabases();
+		super.tearDown();
+	}
+	
+	/**
+	 * A new provider on the same databases. This is like the restart of the process.
+	 * The current provider is shut down so that its databases and threads don't leak into other tests.
+	 */
+	protected T newProvider() throws Exception {
+		if (mProvider != null)
+			mProvider.shutdown();
+		T provider = mProviderClass.newInstance();
+		provider.attachInfo(mProviderContext, null);
+		mProvider = provider;
+		return provider;
+	}
+	
+	protected Uri uri(String path) {
+		return Uri.parse("content://" + mAuthority + "/" + path);
+	}
+	
+	private void deleteDatabases() {
+		for (String name : getContext().databaseList()) {
+			if (name.startsWith(PREFIX + mProviderClass.getSimpleName()))
+				getContext().deleteDatabase(name);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.DatabaseMaintenance;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class EvictionTest extends EasyProviderTestCase<EvictionTest.CacheProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.eviction";
+	
+	private static final int MAX_ROWS = 10;
+	private static final int BATCH_SIZE = 5;
+	private static final long TIME_TO_LIVE = 60 * 1000;
+	
+	static CountDownLatch sTimedIdle; // maintenance runs only when this is set
+	
+	public static class CacheProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseMaintenance onCreateDatabaseMaintenance() {
+			if (sTimedIdle == null)
+				return null;
+			return new DatabaseMaintenance()
+				.setIdleMillis(100)
+				.setOnMaintenanceListener(new DatabaseMaintenance.OnMaintenanceListener() {
+					@Override
+					public void onMaintenance(String databaseName, String task, String table, long elapsedMillis, long reclaimedBytes) {
+						if (DatabaseMaintenance.TASK_IDLE.equals(task) && "timed".equals(table))
+							sTimedIdle.countDown();
+					}
+				});
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE capped (_id INTEGER PRIMARY KEY, name TEXT);");
+						db.execSQL("CREATE TABLE timed (_id INTEGER PRIMARY KEY, name TEXT, time INTEGER);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("capped").setMaxRows(MAX_ROWS).setEvictionBatchSize(BATCH_SIZE),
+				new BaseUriOps("timed").setTimeToLive("time", TIME_TO_LIVE).setEvictionBatchSize(BATCH_SIZE),
+				new BaseUriOps("timed_all", "timed"), // sees the expired rows until they are deleted
+			};
+		}
+	}
+	
+	public EvictionTest() {
+		super(CacheProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		sTimedIdle = null;
+	}
+	
+	public void testMaxRows() {
+		for (int i=0; i<4 * MAX_ROWS; i++) {
+			insert("capped", null);
+			assertEquals(Math.min(i + 1, MAX_ROWS), count("capped")); // never over the cap, not even by a batch
+		}
+		Cursor c = mProvider.query(uri("capped"), new String[] { "min(_id)" }, null, null, null);
+		try {
+			c.moveToFirst();
+			assertTrue("the oldest rows are evicted", c.getLong(0) > 2 * MAX_ROWS);
+		} finally {
+			c.close();
+		}
+	}
+	
+	public void testTimeToLive() {
+		long expired = System.currentTimeMillis() - 2 * TIME_TO_LIVE;
+		for (int i=0; i<3; i++)
+			insert("timed", expired);
+		assertEquals(0, count("timed")); // hidden before eviction
+		assertEquals(3, count("timed_all"));
+		
+		for (int i=0; i<BATCH_SIZE; i++)
+			insert("timed", null);
+		assertEquals(BATCH_SIZE, count("timed"));
+		assertEquals(BATCH_SIZE, count("timed_all")); // evicted by the inserts
+	}
+	
+	// a table which is only read has no inserts to evict the expired rows. the read schedules the maintenance.
+	public void testReadDeletesExpiredRows() throws Exception {
+		long expired = System.currentTimeMillis() - 2 * TIME_TO_LIVE;
+		for (int i=0; i<3; i++)
+			insert("timed", expired);
+		
+		sTimedIdle = new CountDownLatch(1);
+		newProvider(); // with maintenance and no writes
+		assertEquals(0, count("timed"));
+		assertTrue(sTimedIdle.await(10, TimeUnit.SECONDS));
+		assertEquals(0, count("timed_all"));
+	}
+	
+	private void insert(String path, Long time) {
+		ContentValues values = new ContentValues();
+		values.put("name", "x");
+		if (time != null)
+			values.put("time", time);
+		assertNotNull(mProvider.insert(uri(path), values));
+	}
+	
+	private int count(String path) {
+		Uri uri = uri(path);
+		Cursor c = mProvider.query(uri, null, null, null, null);
+		try {
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class ExternalColumnTest extends EasyProviderTestCase<ExternalColumnTest.NoteProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.external";
+	
+	private static final String LARGE = "a memo which is larger than the threshold";
+	
+	public static class NoteProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE note (_id INTEGER PRIMARY KEY, memo TEXT, memo_file TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			BaseUriOps noteOps = new BaseUriOps("note").setExternalColumn("memo", "memo_file", 16);
+			return new UriOps[] {
+				noteOps,
+				new BaseUriOps("note/#").setUriSelection("_id=?").shareExternalColumns(noteOps),
+			};
+		}
+	}
+	
+	public ExternalColumnTest() {
+		super(NoteProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		File dir = getExternalDir();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+		super.tearDown();
+	}
+	
+	public void testDelete() {
+		Uri uri = insert(LARGE);
+		File file = getFile(uri);
+		assertTrue(file.exists());
+		assertEquals(1, mProvider.delete(uri, null, null));
+		assertFalse(file.exists());
+	}
+	
+	public void testUpdate() {
+		Uri uri = insert(LARGE);
+		File first = getFile(uri);
+		assertEquals(1, mProvider.update(uri, memo(LARGE + " again"), null, null)); // shared external columns
+		File second = getFile(uri);
+		assertFalse(first.exists());
+		assertTrue(second.exists());
+		
+		assertEquals(1, mProvider.update(uri, memo("small"), null, null));
+		assertNull(getFileName(uri));
+		assertFalse(second.exists());
+	}
+	
+	public void testUpdateOtherColumn() {
+		Uri uri = insert(LARGE);
+		File file = getFile(uri);
+		ContentValues values = new ContentValues();
+		values.put("_id", 100);
+		assertEquals(1, mProvider.update(uri("note"), values, null, null));
+		assertTrue(file.exists());
+	}
+	
+	public void testDeleteInBatch() throws Exception {
+		Uri uri = insert(LARGE);
+		File file = getFile(uri);
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newDelete(uri).build());
+		mProvider.applyBatch(operations);
+		assertFalse(file.exists());
+	}
+	
+	public void testRolledBackBatchKeepsFile() throws Exception {
+		Uri uri = insert(LARGE);
+		File file = getFile(uri);
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newDelete(uri).build());
+		operations.add(ContentProviderOperation.newDelete(uri).withExpectedCount(1).build()); // fails
+		try {
+			mProvider.applyBatch(operations);
+			fail();
+		} catch (Exception e) {
+		}
+		assertEquals(file.getName(), getFileName(uri));
+		assertTrue(file.exists());
+	}
+	
+	private ContentValues memo(String memo) {
+		ContentValues values = new ContentValues();
+		values.put("memo", memo);
+		return values;
+	}
+	
+	private Uri insert(String memo) {
+		Uri uri = mProvider.insert(uri("note"), memo(memo));
+		assertNotNull(uri);
+		return uri;
+	}
+	
+	private String getFileName(Uri uri) {
+		Cursor c = mProvider.query(uri, new String[] { "memo_file" }, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			return c.getString(0);
+		} finally {
+			c.close();
+		}
+	}
+	
+	private File getFile(Uri uri) {
+		String name = getFileName(uri);
+		assertNotNull(name);
+		return new File(getExternalDir(), name);
+	}
+	
+	private File getExternalDir() {
+		return new File(new File(mProvider.getContext().getFilesDir(), "easy_external"), "note");
+	}
+}
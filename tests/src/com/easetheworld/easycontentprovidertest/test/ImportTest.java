@@ -0,0 +1,155 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.OutputStream;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.ImportUriOps;
+
+public class ImportTest extends EasyProviderTestCase<ImportTest.ImportProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.import";
+	
+	private static final String HEADER = "name,flag\n";
+	private static final String ROWS = "brie,1\ncomte,1\n\"feta, greek\",0\nmozzarella,0\n";
+	
+	public static class ImportProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT NOT NULL, flag INTEGER, memo TEXT, memo_file TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			BaseUriOps cheeseOps = new BaseUriOps("cheese").setExternalColumn("memo", "memo_file", 16);
+			return new UriOps[] {
+				cheeseOps,
+				new ImportUriOps("import/*", cheeseOps).setChunkRows(2),
+			};
+		}
+	}
+	
+	public ImportTest() {
+		super(ImportProvider.class, AUTHORITY);
+	}
+	
+	public void testInsertedRows() throws Exception {
+		Cursor c = runImport("a", HEADER + "brie,1\n,1\ncomte,0\n"); // empty name is null
+		try {
+			assertEquals(ImportUriOps.STATE_DONE, c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE)));
+			assertEquals(3, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_ROWS)));
+			assertEquals(2, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_INSERTED_ROWS)));
+		} finally {
+			c.close();
+		}
+		assertEquals(2, countCheeses());
+	}
+	
+	public void testResume() throws Exception {
+		Cursor c = runImport("b", HEADER + ROWS + "\"unclosed,1\n"); // fails after 2 chunks
+		try {
+			assertEquals(ImportUriOps.STATE_FAILED, c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE)));
+			assertEquals(4, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_ROWS)));
+		} finally {
+			c.close();
+		}
+		assertEquals(4, countCheeses());
+		
+		mProvider.shutdown();
+		mProvider = newProvider(); // resume after restart
+		c = runImport("b", HEADER + ROWS + "gouda,1\n");
+		try {
+			assertEquals(ImportUriOps.STATE_DONE, c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE)));
+			assertEquals(5, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_ROWS)));
+			assertEquals(5, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_INSERTED_ROWS)));
+		} finally {
+			c.close();
+		}
+		assertEquals(5, countCheeses()); // committed rows are not inserted again
+	}
+	
+	public void testResumeWithDifferentData() throws Exception {
+		runImport("c", HEADER + ROWS + "\"unclosed,1\n").close();
+		Cursor c = runImport("c", HEADER + ROWS.replace("comte", "conte") + "gouda,1\n");
+		try {
+			assertEquals(ImportUriOps.STATE_FAILED, c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE)));
+			assertEquals(4, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_ROWS)));
+		} finally {
+			c.close();
+		}
+		assertEquals(4, countCheeses());
+	}
+	
+	// memo over the threshold goes to a file like insert()
+	public void testExternalColumn() throws Exception {
+		String longMemo = "soft cow's milk cheese from the region of Brie";
+		Cursor c = runImport("d", "name,flag,memo\nbrie,1," + longMemo + "\ncomte,1,hard\n");
+		try {
+			assertEquals(ImportUriOps.STATE_DONE, c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE)));
+			assertEquals(2, c.getLong(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_INSERTED_ROWS)));
+		} finally {
+			c.close();
+		}
+		c = mProvider.query(uri("cheese"), new String[] { "memo", "memo_file" }, null, null, "name");
+		try {
+			assertEquals(2, c.getCount());
+			c.moveToFirst(); // brie
+			assertTrue(c.isNull(0));
+			assertFalse(c.isNull(1));
+			c.moveToNext(); // comte
+			assertEquals("hard", c.getString(0));
+			assertTrue(c.isNull(1));
+		} finally {
+			c.close();
+		}
+	}
+	
+	// write the data and wait until the import ends. returns the progress.
+	private Cursor runImport(String name, String data) throws Exception {
+		Uri uri = uri("import/" + name);
+		ParcelFileDescriptor pfd = mProvider.openFile(uri, "w");
+		OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		long deadline = SystemClock.uptimeMillis() + 5000;
+		while (SystemClock.uptimeMillis() < deadline) {
+			Cursor c = mProvider.query(uri, null, null, null, null);
+			if (c.moveToFirst() && !ImportUriOps.STATE_RUNNING.equals(c.getString(c.getColumnIndexOrThrow(ImportUriOps.COLUMN_STATE))))
+				return c;
+			c.close();
+			SystemClock.sleep(20);
+		}
+		fail("Import " + name + " is not done");
+		return null;
+	}
+	
+	private long countCheeses() {
+		Cursor c = mProvider.query(uri("cheese"), new String[] { "count(*)" }, null, null, null);
+		try {
+			c.moveToFirst();
+			return c.getLong(0);
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.JoinUriOps;
+
+public class JoinTest extends EasyProviderTestCase<JoinTest.JoinProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.join";
+	
+	public static class JoinProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT, origin_id INTEGER);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory(String databaseName) {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE origin (_id INTEGER PRIMARY KEY, name TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BaseUriOps("origin").setDatabaseName("places"),
+				new JoinUriOps("cheese_origin", "cheese")
+					.leftJoin("places.origin", "cheese.origin_id", "places.origin._id")
+					.addColumn("_id", "cheese._id")
+					.addColumn("name", "cheese.name")
+					.addColumn("upper", "places.origin.name") // same as a function name
+					.attachDatabases("places"),
+			};
+		}
+	}
+	
+	public JoinTest() {
+		super(JoinProvider.class, AUTHORITY);
+	}
+	
+	public void testColumnNamesInSelection() {
+		insert("origin", "_id", 1, "name", "france");
+		insert("cheese", "_id", 1, "name", "brie", "origin_id", 1);
+		insert("cheese", "_id", 2, "name", "unknown", "origin_id", 9);
+		
+		Cursor c = mProvider.query(uri("cheese_origin"), new String[] { "name", "upper" }, "upper(name)=? OR upper=?",
+				new String[] { "BRIE", "none" }, "name");
+		try {
+			assertEquals(1, c.getCount());
+			c.moveToFirst();
+			assertEquals("brie", c.getString(0));
+			assertEquals("france", c.getString(1));
+		} finally {
+			c.close();
+		}
+	}
+	
+	public void testReadOnly() {
+		ContentValues values = new ContentValues();
+		values.put("name", "brie");
+		assertNull(mProvider.insert(uri("cheese_origin"), values));
+		assertEquals(0, mProvider.delete(uri("cheese_origin"), null, null));
+	}
+	
+	public void testNotifiedByAttachedTable() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		ContentObserver observer = new ContentObserver(null) {
+			@Override
+			public void onChange(boolean selfChange) {
+				latch.countDown();
+			}
+		};
+		getContext().getContentResolver().registerContentObserver(uri("cheese_origin"), true, observer);
+		try {
+			insert("origin", "_id", 1, "name", "france"); // "places.origin"
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+		} finally {
+			getContext().getContentResolver().unregisterContentObserver(observer);
+		}
+	}
+	
+	private void insert(String path, Object... keyValues) {
+		ContentValues values = new ContentValues();
+		for (int i=0; i<keyValues.length; i+=2) {
+			if (keyValues[i + 1] instanceof Integer)
+				values.put((String)keyValues[i], (Integer)keyValues[i + 1]);
+			else
+				values.put((String)keyValues[i], (String)keyValues[i + 1]);
+		}
+		assertNotNull(mProvider.insert(uri(path), values));
+	}
+}
@@ -0,0 +1,89 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.DatabaseMaintenance;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class MaintenanceTest extends EasyProviderTestCase<MaintenanceTest.MaintainedProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.maintenance";
+	
+	static final List<String> sTasks = new ArrayList<String>();
+	static CountDownLatch sDone;
+	
+	public static class MaintainedProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT);");
+						db.execSQL("CREATE INDEX cheese_name ON cheese(name);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+			};
+		}
+		
+		@Override
+		protected DatabaseMaintenance onCreateDatabaseMaintenance() {
+			return new DatabaseMaintenance()
+				.setIdleMillis(100)
+				.setAnalyzeThreshold(1)
+				.setOnMaintenanceListener(new DatabaseMaintenance.OnMaintenanceListener() {
+					@Override
+					public void onMaintenance(String databaseName, String task, String table, long elapsedMillis, long reclaimedBytes) {
+						synchronized (sTasks) {
+							sTasks.add(task + " " + table);
+						}
+						if (DatabaseMaintenance.TASK_WAL_CHECKPOINT.equals(task)) // the last task
+							sDone.countDown();
+					}
+				});
+		}
+	}
+	
+	public MaintenanceTest() {
+		super(MaintainedProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		sTasks.clear();
+		sDone = new CountDownLatch(1);
+		super.setUp();
+	}
+	
+	public void testAnalyzeAndQuit() throws Exception {
+		ContentValues values = new ContentValues();
+		values.put("name", "brie");
+		mProvider.insert(uri("cheese"), values);
+		
+		assertTrue(sDone.await(10, TimeUnit.SECONDS));
+		synchronized (sTasks) {
+			assertTrue(sTasks.toString(), sTasks.contains(DatabaseMaintenance.TASK_ANALYZE + " cheese"));
+		}
+		Thread.sleep(500);
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			assertFalse("maintenance thread should quit", "DatabaseMaintenance".equals(thread.getName()));
+	}
+}
@@ -0,0 +1,106 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.MaterializedAggregateUriOps;
+
+public class MaterializedAggregateTest extends EasyProviderTestCase<MaterializedAggregateTest.AggregateProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.materialized";
+	
+	public static class AggregateProvider extends EasyContentProvider {
+		final MaterializedAggregateUriOps mByFlag = new MaterializedAggregateUriOps("cheese_by_flag", "cheese", "flag")
+			.addSum("total_weight", "weight");
+		
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, flag INTEGER, weight INTEGER);");
+						db.execSQL("INSERT INTO cheese (flag, weight) VALUES (1, 10);"); // before the side table
+					}
+				},
+				mByFlag.getDatabaseHistory(),
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BaseUriOps("cheese/#").setUriSelection("_id=?"),
+				mByFlag,
+			};
+		}
+	}
+	
+	public MaterializedAggregateTest() {
+		super(AggregateProvider.class, AUTHORITY);
+	}
+	
+	public void testKeptByTriggers() {
+		insert(1, 5);
+		insert(2, 7);
+		assertGroup(1, 2, 15);
+		assertGroup(2, 1, 7);
+		
+		ContentValues values = new ContentValues();
+		values.put("flag", 1);
+		assertEquals(1, mProvider.update(uri("cheese"), values, "flag=2", null));
+		assertGroup(1, 3, 22);
+		assertGroup(2, 0, 0);
+		
+		assertEquals(1, mProvider.delete(uri("cheese/1"), null, null));
+		assertGroup(1, 2, 12);
+	}
+	
+	public void testRebuild() {
+		insert(2, 7);
+		assertEquals(2, mProvider.mByFlag.rebuild());
+		assertGroup(1, 1, 10);
+		assertGroup(2, 1, 7);
+	}
+	
+	public void testReadOnly() {
+		ContentValues values = new ContentValues();
+		values.put("flag", 3);
+		assertNull(mProvider.insert(uri("cheese_by_flag"), values));
+		assertEquals(0, mProvider.update(uri("cheese_by_flag"), values, null, null));
+		assertEquals(0, mProvider.delete(uri("cheese_by_flag"), null, null));
+		assertGroup(1, 1, 10);
+	}
+	
+	private void insert(int flag, int weight) {
+		ContentValues values = new ContentValues();
+		values.put("flag", flag);
+		values.put("weight", weight);
+		assertNotNull(mProvider.insert(uri("cheese"), values));
+	}
+	
+	// count 0 means no group
+	private void assertGroup(int flag, int count, int totalWeight) {
+		Cursor c = mProvider.query(uri("cheese_by_flag"), new String[] { MaterializedAggregateUriOps.COLUMN_COUNT, "total_weight" },
+				"flag=?", new String[] { String.valueOf(flag) }, null);
+		try {
+			if (count == 0) {
+				assertEquals(0, c.getCount());
+				return;
+			}
+			assertTrue(c.moveToFirst());
+			assertEquals(count, c.getInt(0));
+			assertEquals(totalWeight, c.getInt(1));
+		} finally {
+			c.close();
+		}
+	}
+}
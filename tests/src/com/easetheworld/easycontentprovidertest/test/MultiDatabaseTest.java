@@ -0,0 +1,122 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+
+public class MultiDatabaseTest extends EasyProviderTestCase<MultiDatabaseTest.TwoDatabaseProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.twodatabases";
+	
+	public static class TwoDatabaseProvider extends EasyContentProvider {
+		static int sPrepareFailures; // UriOps.onPrepareDatabase() throws this many times
+		
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] { createTable("main_item") };
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory(String databaseName) {
+			return new DatabaseHistory[] { createTable("other_item") };
+		}
+		
+		private static DatabaseHistory createTable(final String table) {
+			return new DatabaseHistory() {
+				@Override
+				public void upgrade(SQLiteDatabase db) {
+					db.execSQL("CREATE TABLE " + table + " (_id INTEGER PRIMARY KEY, name TEXT NOT NULL);");
+				}
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("main_item") {
+					@Override
+					protected void onPrepareDatabase(SQLiteDatabase db) {
+						if (sPrepareFailures > 0) {
+							sPrepareFailures--;
+							throw new IllegalStateException("prepare failure");
+						}
+					}
+				}.attachDatabases("other-db"), // needs quote
+				new BaseUriOps("other_item").setDatabaseName("other-db"),
+				new BaseUriOps("attached_item", "\"other-db\".other_item"),
+			};
+		}
+	}
+	
+	public MultiDatabaseTest() {
+		super(TwoDatabaseProvider.class, AUTHORITY);
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		TwoDatabaseProvider.sPrepareFailures = 0;
+		super.setUp();
+	}
+	
+	public void testBatchOverTwoDatabases() throws Exception {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newInsert(uri("main_item")).withValue("name", "a").build());
+		operations.add(ContentProviderOperation.newInsert(uri("other_item")).withValue("name", "b").build());
+		mProvider.applyBatch(operations);
+		assertEquals(1, count(uri("main_item")));
+		assertEquals(1, count(uri("other_item")));
+	}
+	
+	public void testFailedBatchRollsBackAllDatabases() throws Exception {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		operations.add(ContentProviderOperation.newInsert(uri("main_item")).withValue("name", "a").build());
+		operations.add(ContentProviderOperation.newInsert(uri("other_item")).withValue("name", "b").build());
+		operations.add(ContentProviderOperation.newInsert(uri("other_item")).withValue("_id", 1).withValue("name", "duplicate").build());
+		try {
+			mProvider.applyBatch(operations);
+		} catch (Exception e) {
+			// the duplicate _id fails the insert. either the exception or no result is fine.
+		}
+		assertEquals(0, count(uri("main_item")));
+		assertEquals(0, count(uri("other_item")));
+	}
+	
+	public void testAttachedDatabaseWithQuotedName() {
+		ContentValues values = new ContentValues();
+		values.put("name", "b");
+		mProvider.insert(uri("other_item"), values);
+		assertEquals(1, count(uri("attached_item")));
+	}
+	
+	public void testPrepareIsRetriedAfterFailure() throws Exception {
+		TwoDatabaseProvider.sPrepareFailures = 1;
+		mProvider = newProvider();
+		try {
+			count(uri("main_item"));
+			fail("prepare should fail once");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(0, count(uri("main_item"))); // prepared and attached again without "already in use"
+		assertEquals(0, count(uri("attached_item")));
+	}
+	
+	private int count(Uri uri) {
+		Cursor c = mProvider.query(uri, null, null, null, null);
+		try {
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.easetheworld.easycontentprovidertest.ProviderStress;
+import com.easetheworld.easycontentprovidertest.ProviderStress.Round;
+
+// Runs on the "stress" database of the sample provider, not on the cheeses.
+public class ProviderStressTest extends AndroidTestCase {
+	
+	public void testMixedReadersAndWriters() throws Exception {
+		List<Round> rounds = new ProviderStress(getContext().getContentResolver())
+			.setRoundMillis(500)
+			.setThreadCounts(1, 4, 16)
+			.run(null);
+		assertEquals(3, rounds.size());
+		for (Round round : rounds) {
+			assertTrue(round.toString(), round.isPassed());
+			assertTrue(round.toString(), round.reads > 0);
+			assertTrue(round.toString(), round.writes > 0);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.RowBinder;
+
+public class RowBinderTest extends EasyProviderTestCase<RowBinderTest.BindProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.rowbinder";
+	
+	public static class BindProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT UNIQUE NOT NULL, memo TEXT, memo_file TEXT);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese").setExternalColumn("memo", "memo_file", 16),
+			};
+		}
+	}
+	
+	public RowBinderTest() {
+		super(BindProvider.class, AUTHORITY);
+	}
+	
+	public void testFailedRowsAreNotCounted() {
+		assertEquals(2, mProvider.bulkInsert(uri("cheese"), new String[] { "name" }, binder("brie", "brie", "gouda")));
+		assertEquals(2, count());
+	}
+	
+	public void testInsertAfterShutdown() throws Exception {
+		assertEquals(1, mProvider.bulkInsert(uri("cheese"), new String[] { "name" }, binder("brie")));
+		mProvider.shutdown(); // closes the cached statement and the database
+		mProvider = newProvider();
+		assertEquals(1, mProvider.bulkInsert(uri("cheese"), new String[] { "name" }, binder("gouda")));
+		assertEquals(2, count());
+	}
+	
+	// bound values cannot be moved to files, so the insert is refused instead of storing them inline.
+	public void testExternalColumnIsRefused() {
+		try {
+			mProvider.bulkInsert(uri("cheese"), new String[] { "name", "memo" }, binder("brie"));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(0, count());
+	}
+	
+	private static RowBinder binder(final String... names) {
+		return new RowBinder() {
+			int mIndex = 0;
+			
+			@Override
+			public boolean bindNextRow(SQLiteStatement statement) {
+				if (mIndex == names.length) return false;
+				statement.bindString(1, names[mIndex++]);
+				return true;
+			}
+		};
+	}
+	
+	private int count() {
+		Cursor c = mProvider.query(uri("cheese"), null, null, null, null);
+		try {
+			return c.getCount();
+		} finally {
+			c.close();
+		}
+	}
+}
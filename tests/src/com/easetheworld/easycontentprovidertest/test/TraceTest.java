@@ -0,0 +1,131 @@
+package com.easetheworld.easycontentprovidertest.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import dev.easetheworld.easycontentprovider.BaseUriOps;
+import dev.easetheworld.easycontentprovider.EasyContentProvider;
+import dev.easetheworld.easycontentprovider.TraceRecorder;
+import dev.easetheworld.easycontentprovider.TraceReplayer;
+
+/**
+ * Records every operation, replays the trace on an empty database and compares the tables.
+ */
+public class TraceTest extends EasyProviderTestCase<TraceTest.TraceProvider> {
+	
+	public static final String AUTHORITY = "com.easetheworld.easycontentprovidertest.test.trace";
+	
+	public static class TraceProvider extends EasyContentProvider {
+		@Override
+		protected String getAuthority() {
+			return AUTHORITY;
+		}
+		
+		@Override
+		protected DatabaseHistory[] onCreateDatabaseHistory() {
+			return new DatabaseHistory[] {
+				new DatabaseHistory() {
+					@Override
+					public void upgrade(SQLiteDatabase db) {
+						db.execSQL("CREATE TABLE cheese (_id INTEGER PRIMARY KEY, name TEXT, weight REAL, aged INTEGER, flag INTEGER, image BLOB);");
+					}
+				},
+			};
+		}
+		
+		@Override
+		protected UriOps[] onCreateUriOps() {
+			return new UriOps[] {
+				new BaseUriOps("cheese"),
+				new BaseUriOps("cheese/#").setUriSelection("_id=?"),
+			};
+		}
+	}
+	
+	public TraceTest() {
+		super(TraceProvider.class, AUTHORITY);
+	}
+	
+	public void testRoundTrip() throws Exception {
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		TraceRecorder recorder = new TraceRecorder(trace);
+		mProvider.setTraceRecorder(recorder);
+		
+		mProvider.insert(uri("cheese"), values("brie", 1.5, true, null, new byte[] { 1, 2, 3 }));
+		mProvider.bulkInsert(uri("cheese"), new ContentValues[] {
+				values("comte", 40.0, false, 7L, null),
+				values("feta", null, null, 0L, new byte[0]),
+		});
+		mProvider.query(uri("cheese"), new String[] { "name" }, "flag=?", new String[] { "7" }, "name").close();
+		ContentValues update = new ContentValues();
+		update.put("weight", 2.5);
+		update.putNull("image");
+		mProvider.update(uri("cheese/1"), update, null, null);
+		mProvider.delete(uri("cheese"), "name=?", new String[] { "feta" });
+		
+		ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+		batch.add(ContentProviderOperation.newInsert(uri("cheese")).withValues(values("gouda", 8.0, true, 1L, new byte[] { -1 })).build());
+		batch.add(ContentProviderOperation.newAssertQuery(uri("cheese")).withSelection("name=?", new String[] { "gouda" }).withExpectedCount(1).build());
+		batch.add(ContentProviderOperation.newUpdate(uri("cheese")).withValue("flag", 2L).withSelection("name=?", new String[] { "comte" }).build());
+		batch.add(ContentProviderOperation.newDelete(uri("cheese/1")).build());
+		mProvider.applyBatch(batch);
+		
+		mProvider.setTraceRecorder(null);
+		recorder.close();
+		assertNull(recorder.getError());
+		assertEquals(6, recorder.getRecordCount());
+		List<String> expected = dump();
+		
+		List<TraceReplayer.Record> records = TraceReplayer.read(new ByteArrayInputStream(trace.toByteArray()));
+		List<String> operations = new ArrayList<String>();
+		for (TraceReplayer.Record r : records)
+			operations.add(r.getOperation());
+		assertEquals(Arrays.asList("insert", "bulkInsert", "query", "update", "delete", "applyBatch"), operations);
+		List<String> batchOperations = new ArrayList<String>();
+		for (TraceReplayer.Record r : records.get(5).getBatch())
+			batchOperations.add(r.getOperation());
+		assertEquals(Arrays.asList("insert", "query", "update", "delete"), batchOperations);
+		
+		// replay on an empty database
+		mProvider.shutdown();
+		getContext().deleteDatabase("test." + TraceProvider.class.getSimpleName() + ".db");
+		mProvider = newProvider();
+		TraceReplayer.Report report = new TraceReplayer(records).setSpeed(0).replay(mProvider);
+		assertEquals(0, report.getErrorCount());
+		assertEquals(1, report.getBatchOperationCount("query"));
+		assertEquals(1, report.getBatchOperationCount("insert"));
+		assertEquals(expected, dump());
+	}
+	
+	private static ContentValues values(String name, Double weight, Boolean aged, Long flag, byte[] image) {
+		ContentValues values = new ContentValues();
+		values.put("name", name);
+		values.put("weight", weight);
+		values.put("aged", aged);
+		values.put("flag", flag);
+		values.put("image", image);
+		return values;
+	}
+	
+	// rows as strings to compare
+	private List<String> dump() {
+		List<String> rows = new ArrayList<String>();
+		Cursor c = mProvider.query(uri("cheese"), new String[] { "_id", "name", "weight", "aged", "flag", "image" }, null, null, "_id");
+		try {
+			while (c.moveToNext()) {
+				rows.add(c.getLong(0) + "," + c.getString(1) + "," + (c.isNull(2) ? null : c.getDouble(2)) + "," +
+						c.getString(3) + "," + c.getString(4) + "," + (c.isNull(5) ? null : Arrays.toString(c.getBlob(5))));
+			}
+		} finally {
+			c.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,67 @@
+package dev.easetheworld.easycontentprovider;
+
+import junit.framework.TestCase;
+
+/**
+ * Same package as CallerQuota to call acquire() and release() directly,
+ * because the calls of the test app itself are never limited.
+ */
+public class CallerQuotaTest extends TestCase {
+	
+	private static final int UID = 12345;
+	private static final int OTHER_UID = 12346;
+	
+	public void testBurstThenRejected() {
+		CallerQuota quota = new CallerQuota(0.001, 2); // no refill during the test
+		acquireAndRelease(quota, UID);
+		acquireAndRelease(quota, UID);
+		try {
+			quota.acquire(UID);
+			fail("third call should be rejected");
+		} catch (IllegalStateException e) {
+		}
+		acquireAndRelease(quota, OTHER_UID); // other uid has its own bucket
+		assertEquals(2, quota.getAdmittedCount(UID));
+		assertEquals(1, quota.getThrottledCount(UID));
+		assertEquals(3, quota.getAdmittedCount());
+	}
+	
+	public void testConcurrentCalls() {
+		CallerQuota quota = new CallerQuota(1000, 100).setMaxConcurrentCalls(1);
+		quota.acquire(UID);
+		try {
+			quota.acquire(UID);
+			fail("second concurrent call should be rejected");
+		} catch (IllegalStateException e) {
+		}
+		quota.release(UID);
+		acquireAndRelease(quota, UID);
+	}
+	
+	public void testWaitForSlot() throws Exception {
+		final CallerQuota quota = new CallerQuota(1000, 100).setMaxConcurrentCalls(1).setMaxWaitMillis(5000);
+		quota.acquire(UID);
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				quota.release(UID);
+			}
+		};
+		releaser.start();
+		long start = System.currentTimeMillis();
+		quota.acquire(UID); // waits for the release
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		quota.release(UID);
+		releaser.join();
+		assertEquals(0, quota.getThrottledCount());
+	}
+	
+	private static void acquireAndRelease(CallerQuota quota, int uid) {
+		quota.acquire(uid);
+		quota.release(uid);
+	}
+}